@@ -0,0 +1,675 @@
+package nl.tue.astar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.tue.astar.AStarThread.ASynchronousMoveSorting;
+import nl.tue.astar.AStarThread.Canceller;
+import nl.tue.astar.AStarThread.QueueingModel;
+import nl.tue.astar.AStarThread.Type;
+import nl.tue.astar.impl.memefficient.MemoryEfficientAStarAlgorithm;
+import nl.tue.astar.util.LinearTrace;
+import nl.tue.astar.util.TracePrefixTrie;
+
+/**
+ * Executes the searches for a batch of traces concurrently against one
+ * MemoryEfficientAStarAlgorithm, such that all searches share the statespace
+ * of the algorithm. The searches are started longest trace first, to prevent
+ * a long trace started last from determining the time the batch takes. The
+ * results are made available as soon as the search for a trace finishes.
+ *
+ * Optionally, equal traces are searched only once and the optimal records are
+ * cached for later batches, see setResultCache(), and traces with a common
+ * prefix are searched one after the other, see setPrefixSharing().
+ *
+ * The settings of this executor are applied to every AStarThread created. They
+ * should not be changed while a batch is executed.
+ *
+ * @param <H>
+ * @param <T>
+ */
+public class AStarBatchExecutor<H extends Head, T extends Tail> {
+
+	/**
+	 * Creates the initial head for a trace.
+	 *
+	 * @param <H>
+	 */
+	public static interface HeadFactory<H extends Head> {
+		public H createInitialHead(Trace trace);
+	}
+
+	/**
+	 * The outcome of the search for one trace.
+	 */
+	public static class Result {
+		private final Trace trace;
+		private final Record record;
+		private final boolean reliable;
+		private final int visitedStateCount;
+		private final int queuedStateCount;
+		private final int traversedArcCount;
+		private final long nanos;
+		private final AStarException exception;
+		private final boolean cached;
+
+		public Result(Trace trace, Record record, boolean reliable, int visitedStateCount, int queuedStateCount,
+				int traversedArcCount, long nanos, AStarException exception) {
+			this(trace, record, reliable, visitedStateCount, queuedStateCount, traversedArcCount, nanos, exception,
+					false);
+		}
+
+		public Result(Trace trace, Record record, boolean reliable, int visitedStateCount, int queuedStateCount,
+				int traversedArcCount, long nanos, AStarException exception, boolean cached) {
+			this.trace = trace;
+			this.record = record;
+			this.reliable = reliable;
+			this.visitedStateCount = visitedStateCount;
+			this.queuedStateCount = queuedStateCount;
+			this.traversedArcCount = traversedArcCount;
+			this.nanos = nanos;
+			this.exception = exception;
+			this.cached = cached;
+		}
+
+		/**
+		 * Creates the result for a trace equal to the trace of the given
+		 * result, which was not searched.
+		 */
+		private Result(Trace trace, Record record) {
+			this(trace, record, true, 0, 0, 0, 0, null, true);
+		}
+
+		public Trace getTrace() {
+			return trace;
+		}
+
+		/**
+		 * Returns the record returned by the search, or null if the search
+		 * failed or was cancelled before it started.
+		 *
+		 * @return
+		 */
+		public Record getRecord() {
+			return record;
+		}
+
+		public boolean wasReliable() {
+			return reliable;
+		}
+
+		public int getVisitedStateCount() {
+			return visitedStateCount;
+		}
+
+		public int getQueuedStateCount() {
+			return queuedStateCount;
+		}
+
+		public int getTraversedArcCount() {
+			return traversedArcCount;
+		}
+
+		/**
+		 * Returns the time the search took in nanoseconds
+		 *
+		 * @return
+		 */
+		public long getTime() {
+			return nanos;
+		}
+
+		/**
+		 * Returns the exception thrown by the search, or null if there was
+		 * none.
+		 *
+		 * @return
+		 */
+		public AStarException getException() {
+			return exception;
+		}
+
+		/**
+		 * Returns true if the record was not searched for this trace, but
+		 * taken from the result cache or from an equal trace in the same
+		 * batch. The state counts of such a result are 0.
+		 *
+		 * @return
+		 */
+		public boolean isCached() {
+			return cached;
+		}
+	}
+
+	/**
+	 * The results of a batch, which are available in the order in which the
+	 * searches finish.
+	 */
+	public static class Batch {
+		private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+		private final int size;
+		private int taken = 0;
+		private volatile boolean cancelled = false;
+
+		private Batch(int size) {
+			this.size = size;
+		}
+
+		/**
+		 * Returns the number of traces in the batch
+		 *
+		 * @return
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns true if not all results were taken.
+		 *
+		 * @return
+		 */
+		public synchronized boolean hasNext() {
+			return taken < size;
+		}
+
+		/**
+		 * Returns the next finished result, waiting if necessary.
+		 *
+		 * @return the next result, or null if all results were taken.
+		 * @throws InterruptedException
+		 */
+		public synchronized Result take() throws InterruptedException {
+			if (taken == size) {
+				return null;
+			}
+			Result r = results.take();
+			taken++;
+			return r;
+		}
+
+		/**
+		 * Returns the next finished result, waiting at most the given time.
+		 *
+		 * @return the next result, or null if all results were taken or none
+		 *         finished in time.
+		 * @throws InterruptedException
+		 */
+		public synchronized Result poll(long timeout, TimeUnit unit) throws InterruptedException {
+			if (taken == size) {
+				return null;
+			}
+			Result r = results.poll(timeout, unit);
+			if (r != null) {
+				taken++;
+			}
+			return r;
+		}
+
+		/**
+		 * Cancels all running searches, which return their best guess, and all
+		 * searches that did not start yet, which return a result without
+		 * record. A result is still made available for every trace.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	protected final MemoryEfficientAStarAlgorithm<H, T> algorithm;
+	private final int threads;
+	private ExecutorService executor;
+	private final boolean ownExecutor;
+
+	protected int maxStates = Integer.MAX_VALUE;
+	protected int stopAt = Integer.MAX_VALUE;
+	protected QueueingModel queueingModel = QueueingModel.DEPTHFIRST;
+	protected ASynchronousMoveSorting sorting = ASynchronousMoveSorting.MODELMOVEFIRST;
+	protected Type type = Type.PLAIN;
+	protected double epsilon = 0;
+	protected int expectedLength = 10;
+	protected AStarResultCache cache = null;
+	protected int minSharedPrefix = 0;
+
+	/**
+	 * Instantiates an executor using a pool of the given number of threads,
+	 * which is created for the first batch and stopped by shutdown().
+	 *
+	 * @param algorithm
+	 * @param threads
+	 */
+	public AStarBatchExecutor(MemoryEfficientAStarAlgorithm<H, T> algorithm, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed.");
+		}
+		this.algorithm = algorithm;
+		this.threads = threads;
+		this.executor = null;
+		this.ownExecutor = true;
+	}
+
+	/**
+	 * Instantiates an executor using the number of available processors.
+	 *
+	 * @param algorithm
+	 */
+	public AStarBatchExecutor(MemoryEfficientAStarAlgorithm<H, T> algorithm) {
+		this(algorithm, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Instantiates an executor running the searches on the given executor
+	 * service. If the service executes tasks in order of submission, the
+	 * searches are started longest trace first.
+	 *
+	 * @param algorithm
+	 * @param executor
+	 */
+	public AStarBatchExecutor(MemoryEfficientAStarAlgorithm<H, T> algorithm, ExecutorService executor) {
+		this.algorithm = algorithm;
+		this.threads = -1;
+		this.executor = executor;
+		this.ownExecutor = false;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "A Star batch thread " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Starts the searches for all traces from the given initial head.
+	 *
+	 * @param traces
+	 * @param initialHead
+	 * @return
+	 */
+	public Batch execute(Collection<? extends Trace> traces, final H initialHead) {
+		return execute(traces, new HeadFactory<H>() {
+			public H createInitialHead(Trace trace) {
+				return initialHead;
+			}
+		});
+	}
+
+	/**
+	 * The search for one trace, of which the result is also the result for
+	 * the equal traces in the batch.
+	 */
+	private final class Search {
+		private final List<Trace> traces = new ArrayList<Trace>(1);
+		private final AStarResultCache.Key key;
+		private final H initialHead;
+		// the number of traces for which a result was made available
+		private int added = 0;
+
+		public Search(Trace trace, AStarResultCache.Key key, H initialHead) {
+			this.traces.add(trace);
+			this.key = key;
+			this.initialHead = initialHead;
+		}
+
+		public void run(Batch batch, Canceller canceller) {
+			Result result = search(traces.get(0), initialHead, canceller);
+			if (key != null) {
+				cache.put(key, result.getRecord(), result.wasReliable());
+			}
+			batch.results.add(result);
+			added++;
+			for (; added < traces.size(); added++) {
+				if (result.wasReliable()) {
+					batch.results.add(new Result(traces.get(added), result.getRecord()));
+				} else {
+					// the search was cancelled or failed.
+					batch.results.add(new Result(traces.get(added), result.getRecord(), false, 0, 0, 0, 0, result
+							.getException(), true));
+				}
+			}
+		}
+
+		/**
+		 * Makes a failed result available for every trace of this search
+		 * that has no result yet.
+		 */
+		public void fail(Batch batch, AStarException e) {
+			for (; added < traces.size(); added++) {
+				batch.results.add(new Result(traces.get(added), null, false, 0, 0, 0, 0, e));
+			}
+		}
+	}
+
+	/**
+	 * Starts the searches for all traces, longest trace first, from the
+	 * initial heads provided by the factory. This method returns immediately.
+	 *
+	 * @param traces
+	 * @param heads
+	 * @return
+	 */
+	public Batch execute(Collection<? extends Trace> traces, final HeadFactory<H> heads) {
+		List<Trace> sorted = new ArrayList<Trace>(traces);
+		Collections.sort(sorted, new Comparator<Trace>() {
+			public int compare(Trace t1, Trace t2) {
+				return t2.getSize() < t1.getSize() ? -1 : (t2.getSize() == t1.getSize() ? 0 : 1);
+			}
+		});
+
+		final Batch batch = new Batch(sorted.size());
+		final Canceller canceller = new Canceller() {
+			public boolean isCancelled() {
+				return batch.cancelled;
+			}
+		};
+
+		List<Search> searches = new ArrayList<Search>(sorted.size());
+		if (cache == null) {
+			for (Trace trace : sorted) {
+				searches.add(new Search(trace, null, heads.createInitialHead(trace)));
+			}
+		} else {
+			// search only the first of all equal traces, which are not cached.
+			Map<AStarResultCache.Key, Search> equalTraces = new HashMap<AStarResultCache.Key, Search>();
+			for (Trace trace : sorted) {
+				H initialHead = heads.createInitialHead(trace);
+				AStarResultCache.Key key = getKey(trace, initialHead);
+				Search search = equalTraces.get(key);
+				if (search != null) {
+					search.traces.add(trace);
+					continue;
+				}
+				Record rec = cache.get(key);
+				if (rec != null) {
+					batch.results.add(new Result(trace, rec));
+					continue;
+				}
+				search = new Search(trace, key, initialHead);
+				equalTraces.put(key, search);
+				searches.add(search);
+			}
+		}
+
+		List<List<Search>> chains;
+		if (minSharedPrefix > 0) {
+			chains = getChains(searches);
+		} else {
+			chains = new ArrayList<List<Search>>(searches.size());
+			for (Search search : searches) {
+				chains.add(Collections.singletonList(search));
+			}
+		}
+
+		ExecutorService service = getExecutor();
+		for (final List<Search> chain : chains) {
+			service.execute(new Runnable() {
+				public void run() {
+					for (Search search : chain) {
+						try {
+							search.run(batch, canceller);
+						} catch (Throwable e) {
+							// e.g. the cache failed. The traces still need a
+							// result, otherwise take() blocks forever.
+							search.fail(batch, new AStarException(e));
+						}
+					}
+				}
+			});
+		}
+		return batch;
+	}
+
+	/**
+	 * Groups the searches for linear traces sharing a prefix of at least
+	 * minSharedPrefix events in chains, in the order of a prefix trie. A
+	 * chain holds at most as many searches as each thread of the pool gets
+	 * on average, such that no thread is left with most of the batch. The
+	 * chains are ordered by the longest trace in the chain.
+	 */
+	private List<List<Search>> getChains(List<Search> searches) {
+		int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		int maxLength = Math.max(1, (searches.size() + parallelism - 1) / parallelism);
+
+		TracePrefixTrie<Search> trie = new TracePrefixTrie<Search>();
+		List<List<Search>> chains = new ArrayList<List<Search>>();
+		for (Search search : searches) {
+			if (search.traces.get(0) instanceof LinearTrace) {
+				trie.add((LinearTrace) search.traces.get(0), search);
+			} else {
+				chains.add(Collections.singletonList(search));
+			}
+		}
+		for (List<Search> group : trie.getGroups(minSharedPrefix)) {
+			for (int i = 0; i < group.size(); i += maxLength) {
+				chains.add(group.subList(i, Math.min(group.size(), i + maxLength)));
+			}
+		}
+
+		final Map<List<Search>, Integer> longest = new IdentityHashMap<List<Search>, Integer>(chains.size());
+		for (List<Search> chain : chains) {
+			int size = 0;
+			for (Search search : chain) {
+				size = Math.max(size, search.traces.get(0).getSize());
+			}
+			longest.put(chain, size);
+		}
+		Collections.sort(chains, new Comparator<List<Search>>() {
+			public int compare(List<Search> c1, List<Search> c2) {
+				int s1 = longest.get(c1).intValue();
+				int s2 = longest.get(c2).intValue();
+				return s2 < s1 ? -1 : (s2 == s1 ? 0 : 1);
+			}
+		});
+		return chains;
+	}
+
+	/**
+	 * Returns the key under which the result for the given trace is cached,
+	 * based on the current settings of this executor.
+	 *
+	 * @param trace
+	 * @param initialHead
+	 * @return
+	 */
+	public AStarResultCache.Key getKey(Trace trace, H initialHead) {
+		return new AStarResultCache.Key(trace, initialHead, type, epsilon, expectedLength, queueingModel, sorting,
+				stopAt);
+	}
+
+	private Result search(Trace trace, H initialHead, Canceller canceller) {
+		if (canceller.isCancelled()) {
+			return new Result(trace, null, false, 0, 0, 0, 0, null);
+		}
+		long start = System.nanoTime();
+		AStarThread<H, T> thread = null;
+		try {
+			thread = createThread(trace, initialHead);
+			Record rec = thread.getOptimalRecord(canceller, stopAt);
+			return new Result(trace, rec, thread.wasReliable(), thread.getVisitedStateCount(),
+					thread.getQueuedStateCount(), thread.getTraversedArcCount(), System.nanoTime() - start, null);
+		} catch (AStarException e) {
+			return failed(trace, thread, start, e);
+		} catch (Throwable e) {
+			// including errors, such that the trace still gets a result
+			return failed(trace, thread, start, new AStarException(e));
+		}
+	}
+
+	private Result failed(Trace trace, AStarThread<H, T> thread, long start, AStarException e) {
+		return new Result(trace, null, false, thread == null ? 0 : thread.getVisitedStateCount(),
+				thread == null ? 0 : thread.getQueuedStateCount(), thread == null ? 0 : thread.getTraversedArcCount(),
+				System.nanoTime() - start, e);
+	}
+
+	/**
+	 * Creates the AStarThread for a trace, with the settings of this executor.
+	 *
+	 * @param trace
+	 * @param initialHead
+	 * @return
+	 * @throws AStarException
+	 */
+	protected AStarThread<H, T> createThread(Trace trace, H initialHead) throws AStarException {
+		AStarThread.MemoryEfficient<H, T> thread = new AStarThread.MemoryEfficient<H, T>(algorithm, initialHead,
+				trace, maxStates);
+		configure(thread);
+		return thread;
+	}
+
+	/**
+	 * Applies the settings of this executor to the given thread.
+	 *
+	 * @param thread
+	 */
+	protected void configure(AStarThread<H, T> thread) {
+		thread.setQueueingModel(queueingModel);
+		thread.setASynchronousMoveSorting(sorting);
+		thread.setType(type);
+		thread.setEpsilon(epsilon);
+		thread.setExpectedLength(expectedLength);
+	}
+
+	/**
+	 * Stops the threads of the pool created by this executor, after all
+	 * submitted searches finished. An executor service passed to the
+	 * constructor is not stopped.
+	 */
+	public synchronized void shutdown() {
+		if (ownExecutor && executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Sets the cache of optimal records. If a cache is set, the search is
+	 * skipped for traces of which the record is cached, and only one of a
+	 * group of equal traces in a batch is searched. The cache can be shared
+	 * by executors, as long as they use the same algorithm. Set to null to
+	 * search all traces.
+	 *
+	 * @param cache
+	 */
+	public void setResultCache(AStarResultCache cache) {
+		this.cache = cache;
+	}
+
+	public AStarResultCache getResultCache() {
+		return cache;
+	}
+
+	/**
+	 * If set to a positive value, linear traces sharing a prefix of at least
+	 * the given number of events are searched one after the other by the same
+	 * thread, in the order of a prefix trie, such that each trace follows the
+	 * trace with which it shares the longest prefix. The searches do not share
+	 * their queues, but a trace that reaches a state stored by an earlier
+	 * trace finds its tail in the shared statespace, hence the estimate is not
+	 * computed again. Searched concurrently, two such traces may both compute
+	 * the estimate of a state neither of them stored yet. Whether states of
+	 * traces with a common prefix coincide depends on the heads created by
+	 * the delegate.
+	 *
+	 * A chain holds at most the number of searches divided by the number of
+	 * threads. The default is 0, which searches each trace in its own task.
+	 *
+	 * @param minSharedPrefix
+	 */
+	public void setPrefixSharing(int minSharedPrefix) {
+		this.minSharedPrefix = minSharedPrefix;
+	}
+
+	public int getPrefixSharing() {
+		return minSharedPrefix;
+	}
+
+	public MemoryEfficientAStarAlgorithm<H, T> getAlgorithm() {
+		return algorithm;
+	}
+
+	public void setMaxStates(int maxStates) {
+		this.maxStates = maxStates;
+	}
+
+	public int getMaxStates() {
+		return maxStates;
+	}
+
+	/**
+	 * Sets the cost at which the searches stop, see
+	 * AStarThread.getOptimalRecord(Canceller, int)
+	 *
+	 * @param stopAt
+	 */
+	public void setStopAt(int stopAt) {
+		this.stopAt = stopAt;
+	}
+
+	public int getStopAt() {
+		return stopAt;
+	}
+
+	public void setQueueingModel(QueueingModel model) {
+		this.queueingModel = model;
+	}
+
+	public QueueingModel getQueueingModel() {
+		return queueingModel;
+	}
+
+	public void setASynchronousMoveSorting(ASynchronousMoveSorting sorting) {
+		this.sorting = sorting;
+	}
+
+	public ASynchronousMoveSorting getSorting() {
+		return sorting;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setEpsilon(double epsilon) {
+		this.epsilon = epsilon;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public void setExpectedLength(int length) {
+		this.expectedLength = length;
+	}
+
+	public int getExpectedLength() {
+		return expectedLength;
+	}
+}
@@ -0,0 +1,141 @@
+package nl.tue.astar;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.tue.astar.AStarThread.ASynchronousMoveSorting;
+import nl.tue.astar.AStarThread.QueueingModel;
+import nl.tue.astar.AStarThread.Type;
+
+/**
+ * Cache of the optimal records found for traces. A record is cached under the
+ * content of the trace, the initial head and the settings of the search
+ * which determine the result, hence the record can be returned for any trace
+ * that equals the trace for which it was computed. As the moves in a record
+ * refer to events by their index in the trace, the backtrace of the record is
+ * valid for all equal traces.
+ *
+ * Only reliable records are cached. Traces should not be changed after their
+ * record is cached.
+ *
+ * This class is Thread-safe.
+ */
+public class AStarResultCache {
+
+	/**
+	 * The key under which a record is cached.
+	 */
+	public static final class Key {
+		private final Trace trace;
+		private final Head initialHead;
+		private final Type type;
+		private final double epsilon;
+		private final int expectedLength;
+		private final QueueingModel queueingModel;
+		private final ASynchronousMoveSorting sorting;
+		private final int stopAt;
+		private final int hashCode;
+
+		public Key(Trace trace, Head initialHead, Type type, double epsilon, int expectedLength,
+				QueueingModel queueingModel, ASynchronousMoveSorting sorting, int stopAt) {
+			this.trace = trace;
+			this.initialHead = initialHead;
+			this.type = type;
+			// epsilon and the expected length do not influence a plain search
+			this.epsilon = type == Type.PLAIN ? 0 : epsilon;
+			this.expectedLength = type == Type.WEIGHTED_DYNAMIC ? expectedLength : 0;
+			this.queueingModel = queueingModel;
+			this.sorting = sorting;
+			this.stopAt = stopAt;
+
+			int h = trace.hashCode();
+			h = 31 * h + initialHead.hashCode();
+			h = 31 * h + type.hashCode();
+			long e = Double.doubleToLongBits(this.epsilon);
+			h = 31 * h + (int) (e ^ (e >>> 32));
+			h = 31 * h + this.expectedLength;
+			h = 31 * h + queueingModel.hashCode();
+			h = 31 * h + sorting.hashCode();
+			h = 31 * h + stopAt;
+			this.hashCode = h;
+		}
+
+		public Trace getTrace() {
+			return trace;
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.hashCode == hashCode && k.type == type && k.queueingModel == queueingModel
+					&& k.sorting == sorting && k.stopAt == stopAt && k.expectedLength == expectedLength
+					&& Double.compare(k.epsilon, epsilon) == 0 && k.trace.equals(trace)
+					&& k.initialHead.equals(initialHead);
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Record> records = new ConcurrentHashMap<Key, Record>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Returns the record cached under the given key, or null if there is none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public Record get(Key key) {
+		Record rec = records.get(key);
+		if (rec == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return rec;
+	}
+
+	/**
+	 * Caches the record under the given key, if it is reliable.
+	 *
+	 * @param key
+	 * @param rec
+	 * @param reliable
+	 */
+	public void put(Key key, Record rec, boolean reliable) {
+		if (reliable && rec != null) {
+			records.putIfAbsent(key, rec);
+		}
+	}
+
+	public int size() {
+		return records.size();
+	}
+
+	public void clear() {
+		records.clear();
+	}
+
+	/**
+	 * Returns the number of calls to get() which returned a record.
+	 *
+	 * @return
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of calls to get() which returned null.
+	 *
+	 * @return
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+}
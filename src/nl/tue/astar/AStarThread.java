@@ -2,9 +2,12 @@ package nl.tue.astar;
 
 import gnu.trove.map.TObjectIntMap;
 
+import java.util.Collections;
 import java.util.List;
 
 import nl.tue.astar.impl.AbstractAStarThread;
+import nl.tue.astar.impl.BidirectionalAStarThread;
+import nl.tue.astar.impl.HashDistributedAStarThread;
 import nl.tue.astar.impl.JavaCollectionStorageHandler;
 import nl.tue.astar.impl.State;
 import nl.tue.astar.impl.memefficient.MemoryEfficientAStarAlgorithm;
@@ -76,6 +79,74 @@ public interface AStarThread<H extends Head, T extends Tail> {
 		}
 	}
 
+	/**
+	 * CPUEfficient variant which distributes the search for one trace over
+	 * the given number of threads. See HashDistributedAStarThread.
+	 * 
+	 * As the workers share the storage handler, the states are stored in and
+	 * read from a synchronized view of the given list, i.e. the list itself
+	 * does not have to be thread-safe, but it should not be used by others
+	 * during the search.
+	 */
+	public static class ParallelCPUEfficient<H extends Head, T extends Tail> extends HashDistributedAStarThread<H, T> {
+
+		public ParallelCPUEfficient(Delegate<H, T> delegate, TObjectIntMap<H> head2int, List<State<H, T>> stateList,
+				H initialHead, Trace trace, int maxStates, int threads) throws AStarException {
+			super(delegate, trace, maxStates, new JavaCollectionStorageHandler<H, T>(delegate, head2int, Collections
+					.synchronizedList(stateList)), threads);
+			initializeQueue(initialHead);
+		}
+	}
+
+	/**
+	 * MemoryEfficient variant which distributes the search for one trace over
+	 * the given number of threads. See HashDistributedAStarThread.
+	 */
+	public static class ParallelMemoryEfficient<H extends Head, T extends Tail> extends
+			HashDistributedAStarThread<H, T> {
+
+		public ParallelMemoryEfficient(MemoryEfficientAStarAlgorithm<H, T> algorithm, H initialHead, Trace trace,
+				int maxStates, int threads) throws AStarException {
+			super(algorithm.getDelegate(), trace, maxStates, new MemoryEfficientStorageHandler<H, T>(algorithm),
+					threads);
+			initializeQueue(initialHead);
+		}
+	}
+
+	/**
+	 * CPUEfficient variant which searches forward and backward at the same
+	 * time. The delegate should implement ReverseMoveDelegate. See
+	 * BidirectionalAStarThread.
+	 */
+	public static class BidirectionalCPUEfficient<H extends Head, T extends Tail> extends
+			BidirectionalAStarThread<H, T> {
+
+		public BidirectionalCPUEfficient(ReverseMoveDelegate<H, T> delegate, TObjectIntMap<H> head2int,
+				List<State<H, T>> stateList, H initialHead, Trace trace, int maxStates) throws AStarException {
+			super(delegate, trace, maxStates, new JavaCollectionStorageHandler<H, T>(delegate, head2int, stateList));
+			initializeQueue(initialHead);
+		}
+	}
+
+	/**
+	 * MemoryEfficient variant which searches forward and backward at the same
+	 * time. The delegate of the algorithm should implement
+	 * ReverseMoveDelegate. See BidirectionalAStarThread.
+	 * 
+	 * Only the states of the forward search are kept in the compressed store
+	 * of the algorithm. The heads of the backward search and the records of
+	 * the forward search are kept in maps on the heap, outside the store.
+	 */
+	public static class BidirectionalMemoryEfficient<H extends Head, T extends Tail> extends
+			BidirectionalAStarThread<H, T> {
+
+		public BidirectionalMemoryEfficient(MemoryEfficientAStarAlgorithm<H, T> algorithm, H initialHead,
+				Trace trace, int maxStates) throws AStarException {
+			super(algorithm.getDelegate(), trace, maxStates, new MemoryEfficientStorageHandler<H, T>(algorithm));
+			initializeQueue(initialHead);
+		}
+	}
+
 	public static interface Canceller {
 		public boolean isCancelled();
 	}
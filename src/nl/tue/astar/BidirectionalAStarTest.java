@@ -0,0 +1,177 @@
+package nl.tue.astar;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nl.tue.astar.ParallelAStarTest.AutomatonDelegate;
+import nl.tue.astar.ParallelAStarTest.AutomatonHead;
+import nl.tue.astar.ParallelAStarTest.AutomatonRecord;
+import nl.tue.astar.impl.DijkstraTail;
+import nl.tue.astar.impl.State;
+
+/**
+ * Checks the BidirectionalAStarThread against the forward AStarThread, on the
+ * random alignments of ParallelAStarTest. The bidirectional search should
+ * return a record of the same cost, which explains the whole trace and ends
+ * in the final node. Every other alignment is first cancelled after a few
+ * steps and then resumed by calling getOptimalRecord again. Once the search
+ * found an optimal record, a later call should return it as an unreliable
+ * result. The number of visited states of both searches is reported.
+ */
+public class BidirectionalAStarTest {
+
+	// number of random alignments
+	private static final int RUNS = 500;
+	// maximum number of nodes of an automaton
+	private static final int NODES = 200;
+	// maximum number of edges leaving a node
+	private static final int EDGES = 3;
+	// maximum length of a trace
+	private static final int LENGTH = 60;
+	// number of activities
+	private static final int ACTIVITIES = 8;
+	// number of checks of the canceller before a search is cancelled
+	private static final int STEPS = 20;
+
+	private static Random generator = new Random(0);
+
+	/**
+	 * AutomatonDelegate that also provides the reverse moves, with a reverse
+	 * estimate of 0.
+	 */
+	private static class ReverseAutomatonDelegate extends AutomatonDelegate implements
+			ReverseMoveDelegate<AutomatonHead, DijkstraTail> {
+
+		// the source and number of each edge entering a node
+		private final int[][] sources;
+		private final int[][] edges;
+
+		public ReverseAutomatonDelegate(Random generator, int nodes, int edgeCount, int activityCount, Trace trace) {
+			super(generator, nodes, edgeCount, activityCount, trace);
+			int[] in = new int[nodes];
+			for (int n = 0; n < nodes; n++) {
+				for (int e = 0; e < targets[n].length; e++) {
+					in[targets[n][e]]++;
+				}
+			}
+			this.sources = new int[nodes][];
+			this.edges = new int[nodes][];
+			for (int n = 0; n < nodes; n++) {
+				sources[n] = new int[in[n]];
+				edges[n] = new int[in[n]];
+				in[n] = 0;
+			}
+			for (int n = 0; n < nodes; n++) {
+				for (int e = 0; e < targets[n].length; e++) {
+					int t = targets[n][e];
+					sources[t][in[t]] = n;
+					edges[t][in[t]++] = e;
+				}
+			}
+		}
+
+		public Collection<AutomatonHead> createFinalHeads(AutomatonHead initialHead, Trace trace) {
+			return Collections.singletonList(new AutomatonHead(finalNode, trace.getSize()));
+		}
+
+		public List<ReverseMove<AutomatonHead>> getReverseMoves(AutomatonHead head, Trace trace) {
+			List<ReverseMove<AutomatonHead>> moves = new ArrayList<ReverseMove<AutomatonHead>>();
+			final int event = head.event - 1;
+			for (int i = 0; i < sources[head.node].length; i++) {
+				final int source = sources[head.node][i];
+				final int edge = edges[head.node][i];
+				moves.add(new ReverseMove<AutomatonHead>(new AutomatonHead(source, head.event), edge,
+						AStarThread.NOMOVE, activities[source][edge], 2));
+				if (event >= 0 && activities[source][edge] == trace.get(event)) {
+					moves.add(new ReverseMove<AutomatonHead>(new AutomatonHead(source, event), edge, event, trace
+							.get(event), 0));
+				}
+			}
+			if (event >= 0) {
+				moves.add(new ReverseMove<AutomatonHead>(new AutomatonHead(head.node, event), AStarThread.NOMOVE,
+						event, trace.get(event), 3));
+			}
+			return moves;
+		}
+
+		public int getReverseEstimate(AutomatonHead head, AutomatonHead initialHead, Trace trace) {
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) throws AStarException {
+		int errors = 0;
+		long forwardStates = 0, bidirectionalStates = 0;
+		System.out.println("Aligning " + RUNS + " random traces of at most " + LENGTH
+				+ " events with random automata of at most " + NODES + " nodes.");
+		for (int run = 0; run < RUNS; run++) {
+			Trace trace = ParallelAStarTest.randomTrace(generator, "trace " + run, LENGTH, ACTIVITIES);
+			ReverseAutomatonDelegate delegate = new ReverseAutomatonDelegate(generator,
+					2 + generator.nextInt(NODES - 1), EDGES, ACTIVITIES, trace);
+
+			AStarThread<AutomatonHead, DijkstraTail> forward = new AStarThread.CPUEfficient<AutomatonHead, DijkstraTail>(
+					delegate, new TObjectIntHashMap<AutomatonHead>(),
+					new ArrayList<State<AutomatonHead, DijkstraTail>>(), new AutomatonHead(0, 0), trace,
+					Integer.MAX_VALUE);
+			Record expected = forward.getOptimalRecord(ParallelAStarTest.NEVER);
+
+			AStarThread<AutomatonHead, DijkstraTail> bidirectional = new AStarThread.BidirectionalCPUEfficient<AutomatonHead, DijkstraTail>(
+					delegate, new TObjectIntHashMap<AutomatonHead>(),
+					new ArrayList<State<AutomatonHead, DijkstraTail>>(), new AutomatonHead(0, 0), trace,
+					Integer.MAX_VALUE);
+			Record found = null;
+			if (run % 2 == 1) {
+				// cancel after a few steps, then resume
+				found = bidirectional.getOptimalRecord(new AStarThread.Canceller() {
+					private int steps = 0;
+
+					public boolean isCancelled() {
+						return steps++ >= STEPS;
+					}
+				});
+			}
+			if (found == null || !bidirectional.wasReliable()) {
+				// small searches may finish before they are cancelled
+				found = bidirectional.getOptimalRecord(ParallelAStarTest.NEVER);
+			}
+			forwardStates += forward.getVisitedStateCount();
+			bidirectionalStates += bidirectional.getVisitedStateCount();
+
+			if (forward.wasReliable() != bidirectional.wasReliable()) {
+				System.err.println("Run " + run + ": reliable " + bidirectional.wasReliable() + " instead of "
+						+ forward.wasReliable());
+				errors++;
+			} else if (forward.wasReliable()) {
+				if (found.getTotalCost() != expected.getTotalCost()) {
+					System.err.println("Run " + run + ": cost " + found.getTotalCost() + " instead of "
+							+ expected.getTotalCost());
+					errors++;
+				}
+				// the record should explain the whole trace and its backtrace
+				// should lead to the initial record.
+				int steps = 0;
+				for (Record r = found; r.getPredecessor() != null; r = r.getPredecessor()) {
+					steps++;
+				}
+				if (steps != found.getBacktraceSize() || ((AutomatonRecord) found).getEvent() != trace.getSize()) {
+					System.err.println("Run " + run + ": the record does not end in a final state.");
+					errors++;
+				}
+				// later calls should end the loop over getOptimalRecord
+				if (bidirectional.getOptimalRecord(ParallelAStarTest.NEVER, (int) found.getTotalCost()) != found
+						|| bidirectional.wasReliable()) {
+					System.err.println("Run " + run + ": a later call returned a reliable result.");
+					errors++;
+				}
+			}
+		}
+		System.out.println("visited states forward: " + forwardStates + ", bidirectional: " + bidirectionalStates);
+		System.out.println("===============================");
+		System.out.println(errors + " errors were found");
+	}
+}
@@ -0,0 +1,308 @@
+package nl.tue.astar;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import nl.tue.astar.AStarThread.QueueingModel;
+import nl.tue.astar.impl.DijkstraTail;
+import nl.tue.astar.impl.State;
+import nl.tue.astar.util.LinearTrace;
+import nl.tue.storage.CompressedStore;
+import nl.tue.storage.StorageException;
+
+/**
+ * Checks the HashDistributedAStarThread against the sequential AStarThread.
+ * Random traces are aligned with random automata, in which every edge is
+ * labelled with an activity. A synchronous move costs 0, a move on model only
+ * 2 and a move on log only 3. For each alignment, the parallel search, with a
+ * varying number of workers and queueing model, should return a record of the
+ * same cost as the sequential search. The total time of both searches is
+ * reported.
+ */
+public class ParallelAStarTest {
+
+	// number of random alignments
+	private static final int RUNS = 500;
+	// maximum number of workers
+	private static final int THREADS = 4;
+	// maximum number of nodes of an automaton
+	private static final int NODES = 200;
+	// maximum number of edges leaving a node
+	private static final int EDGES = 3;
+	// maximum length of a trace
+	private static final int LENGTH = 40;
+	// number of activities
+	private static final int ACTIVITIES = 8;
+
+	private static Random generator = new Random(0);
+
+	static final AStarThread.Canceller NEVER = new AStarThread.Canceller() {
+		public boolean isCancelled() {
+			return false;
+		}
+	};
+
+	/**
+	 * A node of the automaton and the number of events of the trace
+	 * explained so far.
+	 */
+	static class AutomatonHead implements Head {
+
+		final int node;
+		final int event;
+
+		public AutomatonHead(int node, int event) {
+			this.node = node;
+			this.event = event;
+		}
+
+		public Head getNextHead(Record rec, Delegate<? extends Head, ? extends Tail> d, int modelMove,
+				int logMove, int activity) {
+			return new AutomatonHead(modelMove == AStarThread.NOMOVE ? node
+					: ((AutomatonDelegate) d).targets[node][modelMove], logMove == AStarThread.NOMOVE ? event
+					: event + 1);
+		}
+
+		public TIntList getSynchronousMoves(Record rec, Delegate<? extends Head, ? extends Tail> delegate,
+				TIntList enabled, int activity) {
+			final int[] activities = ((AutomatonDelegate) delegate).activities[node];
+			TIntList moves = new TIntArrayList();
+			for (int i = 0; i < enabled.size(); i++) {
+				if (activities[enabled.get(i)] == activity) {
+					moves.add(enabled.get(i));
+				}
+			}
+			return moves;
+		}
+
+		public TIntList getModelMoves(Record rec, Delegate<? extends Head, ? extends Tail> delegate) {
+			TIntList moves = new TIntArrayList();
+			for (int i = 0; i < ((AutomatonDelegate) delegate).targets[node].length; i++) {
+				moves.add(i);
+			}
+			return moves;
+		}
+
+		public boolean isFinal(Delegate<? extends Head, ? extends Tail> delegate) {
+			final AutomatonDelegate d = (AutomatonDelegate) delegate;
+			return node == d.finalNode && event == d.trace.getSize();
+		}
+
+		public int hashCode() {
+			return node * 31 + event;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof AutomatonHead && ((AutomatonHead) o).node == node
+					&& ((AutomatonHead) o).event == event;
+		}
+	}
+
+	/**
+	 * Record of a linear trace, which keeps its predecessor in memory.
+	 */
+	static class AutomatonRecord implements Record {
+
+		private long state;
+		private final int cost;
+		private final int modelMove;
+		private final int movedEvent;
+		private final int event;
+		private final int length;
+		private final AutomatonRecord predecessor;
+		private double estimate;
+		private boolean exact;
+
+		public AutomatonRecord(long state, int cost, int modelMove, int movedEvent, int event,
+				AutomatonRecord predecessor) {
+			this.state = state;
+			this.cost = cost;
+			this.modelMove = modelMove;
+			this.movedEvent = movedEvent;
+			this.event = event;
+			this.predecessor = predecessor;
+			this.length = predecessor == null ? 0 : predecessor.length + 1;
+		}
+
+		public <H extends Head, T extends Tail> State<H, T> getState(CompressedStore<State<H, T>> storage)
+				throws StorageException {
+			return storage.getObject(state);
+		}
+
+		public long getState() {
+			return state;
+		}
+
+		public int getCostSoFar() {
+			return cost;
+		}
+
+		public double getEstimatedRemainingCost() {
+			return estimate;
+		}
+
+		public double getTotalCost() {
+			return cost + estimate;
+		}
+
+		public void setEstimatedRemainingCost(double cost, boolean isExactEstimate) {
+			this.estimate = cost;
+			this.exact = isExactEstimate;
+		}
+
+		public boolean isExactEstimate() {
+			return exact;
+		}
+
+		public Record getPredecessor() {
+			return predecessor;
+		}
+
+		public void setState(long index) {
+			this.state = index;
+		}
+
+		public Record getNextRecord(Delegate<? extends Head, ? extends Tail> d, Trace trace, Head newHead,
+				long state, int modelMove, int movedEvent, int activity) {
+			int c;
+			if (modelMove == AStarThread.NOMOVE) {
+				c = 3;
+			} else if (movedEvent == AStarThread.NOMOVE) {
+				c = 2;
+			} else {
+				c = 0;
+			}
+			return new AutomatonRecord(state, cost + c, modelMove, movedEvent, ((AutomatonHead) newHead).event,
+					this);
+		}
+
+		public int getModelMove() {
+			return modelMove;
+		}
+
+		public int getMovedEvent() {
+			return movedEvent;
+		}
+
+		public TIntCollection getNextEvents(Delegate<? extends Head, ? extends Tail> delegate, Trace trace) {
+			TIntArrayList events = new TIntArrayList(1);
+			if (event < trace.getSize()) {
+				events.add(event);
+			}
+			return events;
+		}
+
+		public int getBacktraceSize() {
+			return length;
+		}
+
+		/**
+		 * Returns the number of events of the trace explained by this record
+		 *
+		 * @return
+		 */
+		public int getEvent() {
+			return event;
+		}
+	}
+
+	/**
+	 * Delegate for aligning a trace with a random automaton, in which node 0
+	 * is the initial node and the last node is the final node. The tails
+	 * estimate 0, i.e. the search is a Dijkstra search.
+	 */
+	static class AutomatonDelegate implements Delegate<AutomatonHead, DijkstraTail> {
+
+		// the target and activity of each edge leaving a node
+		final int[][] targets;
+		final int[][] activities;
+		final int finalNode;
+		final Trace trace;
+
+		public AutomatonDelegate(Random generator, int nodes, int edges, int activityCount, Trace trace) {
+			this.targets = new int[nodes][];
+			this.activities = new int[nodes][];
+			for (int n = 0; n < nodes; n++) {
+				int k = 1 + generator.nextInt(edges);
+				targets[n] = new int[k];
+				activities[n] = new int[k];
+				for (int e = 0; e < k; e++) {
+					targets[n][e] = generator.nextInt(nodes);
+					activities[n][e] = generator.nextInt(activityCount);
+				}
+			}
+			this.finalNode = nodes - 1;
+			this.trace = trace;
+		}
+
+		public Record createInitialRecord(AutomatonHead head, Trace trace) {
+			AutomatonRecord rec = new AutomatonRecord(0, 0, AStarThread.NOMOVE, AStarThread.NOMOVE, 0, null);
+			rec.setEstimatedRemainingCost(0, true);
+			return rec;
+		}
+
+		public DijkstraTail createInitialTail(AutomatonHead head) {
+			return DijkstraTail.EMPTY;
+		}
+	}
+
+	/**
+	 * Returns a random trace of at most the given length
+	 */
+	static Trace randomTrace(Random generator, String label, int length, int activityCount) {
+		int[] activities = new int[1 + generator.nextInt(length)];
+		for (int i = 0; i < activities.length; i++) {
+			activities[i] = generator.nextInt(activityCount);
+		}
+		return new LinearTrace(label, activities);
+	}
+
+	public static void main(String[] args) throws AStarException {
+		int errors = 0;
+		long sequential = 0, parallel = 0;
+		System.out.println("Aligning " + RUNS + " random traces of at most " + LENGTH
+				+ " events with random automata of at most " + NODES + " nodes.");
+		for (int run = 0; run < RUNS; run++) {
+			Trace trace = randomTrace(generator, "trace " + run, LENGTH, ACTIVITIES);
+			AutomatonDelegate delegate = new AutomatonDelegate(generator, 2 + generator.nextInt(NODES - 1), EDGES,
+					ACTIVITIES, trace);
+			int threads = 1 + run % THREADS;
+			QueueingModel model = QueueingModel.values()[run % QueueingModel.values().length];
+
+			long start = System.nanoTime();
+			AStarThread<AutomatonHead, DijkstraTail> seq = new AStarThread.CPUEfficient<AutomatonHead, DijkstraTail>(
+					delegate, new TObjectIntHashMap<AutomatonHead>(),
+					new ArrayList<State<AutomatonHead, DijkstraTail>>(), new AutomatonHead(0, 0), trace,
+					Integer.MAX_VALUE);
+			Record expected = seq.getOptimalRecord(NEVER);
+			sequential += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			// the workers access the list through a synchronized view
+			AStarThread<AutomatonHead, DijkstraTail> par = new AStarThread.ParallelCPUEfficient<AutomatonHead, DijkstraTail>(
+					delegate, new TObjectIntHashMap<AutomatonHead>(),
+					new ArrayList<State<AutomatonHead, DijkstraTail>>(), new AutomatonHead(0, 0), trace,
+					Integer.MAX_VALUE, threads);
+			par.setQueueingModel(model);
+			Record found = par.getOptimalRecord(NEVER);
+			parallel += System.nanoTime() - start;
+
+			if (seq.wasReliable() != par.wasReliable()
+					|| (seq.wasReliable() && expected.getTotalCost() != found.getTotalCost())) {
+				System.err.println("Run " + run + " with " + threads + " workers and " + model + " queueing: cost "
+						+ (par.wasReliable() ? found.getTotalCost() : "unreliable") + " instead of "
+						+ (seq.wasReliable() ? expected.getTotalCost() : "unreliable"));
+				errors++;
+			}
+		}
+		System.out.println(String.format("sequential: %.3f s, parallel: %.3f s", sequential / 1E9, parallel / 1E9));
+		System.out.println("===============================");
+		System.out.println(errors + " errors were found");
+		System.exit(0);
+	}
+}
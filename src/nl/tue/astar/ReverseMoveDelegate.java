@@ -0,0 +1,102 @@
+package nl.tue.astar;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Extension of the delegate needed for searching backward from the final
+ * heads, as done by the bidirectional AStarThread. A reverse move of a head h
+ * is a move that leads from its previous head to h.
+ *
+ * The costs of the reverse moves should equal the costs the records of the
+ * delegate assign to the corresponding forward moves.
+ *
+ * @param <H>
+ * @param <T>
+ */
+public interface ReverseMoveDelegate<H extends Head, T extends Tail> extends Delegate<H, T> {
+
+	/**
+	 * A move from previousHead to the head for which it was returned.
+	 *
+	 * @param <H>
+	 */
+	public static class ReverseMove<H extends Head> {
+		private final H previousHead;
+		private final int modelMove;
+		private final int movedEvent;
+		private final int activity;
+		private final int cost;
+
+		/**
+		 *
+		 * @param previousHead
+		 * @param modelMove
+		 *            the model move, or AStarThread.NOMOVE
+		 * @param movedEvent
+		 *            the index of the event in the trace, or
+		 *            AStarThread.NOMOVE
+		 * @param activity
+		 *            the activity of the event, or AStarThread.NOMOVE
+		 * @param cost
+		 */
+		public ReverseMove(H previousHead, int modelMove, int movedEvent, int activity, int cost) {
+			this.previousHead = previousHead;
+			this.modelMove = modelMove;
+			this.movedEvent = movedEvent;
+			this.activity = activity;
+			this.cost = cost;
+		}
+
+		public H getPreviousHead() {
+			return previousHead;
+		}
+
+		public int getModelMove() {
+			return modelMove;
+		}
+
+		public int getMovedEvent() {
+			return movedEvent;
+		}
+
+		public int getActivity() {
+			return activity;
+		}
+
+		public int getCost() {
+			return cost;
+		}
+	}
+
+	/**
+	 * Returns the final heads that can be reached from the initial head for
+	 * the given trace. The backward search starts in these heads.
+	 *
+	 * @param initialHead
+	 * @param trace
+	 * @return
+	 */
+	public Collection<H> createFinalHeads(H initialHead, Trace trace);
+
+	/**
+	 * Returns all moves leading to the given head.
+	 *
+	 * @param head
+	 * @param trace
+	 * @return
+	 */
+	public List<ReverseMove<H>> getReverseMoves(H head, Trace trace);
+
+	/**
+	 * Returns an underestimate of the cost of reaching the given head from
+	 * the initial head. Returning 0 is always allowed.
+	 *
+	 * @param head
+	 * @param initialHead
+	 * @param trace
+	 * @return
+	 */
+	public int getReverseEstimate(H head, H initialHead, Trace trace);
+
+}
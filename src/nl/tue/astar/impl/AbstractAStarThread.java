@@ -436,6 +436,20 @@ public abstract class AbstractAStarThread<H extends Head, T extends Tail> implem
 		}
 	}
 
+	/**
+	 * Returns a lower bound for the cost so far of any record reaching the
+	 * state at index that needs no further investigation, or -1 if the state
+	 * was not considered. Since states are considered in order of increasing
+	 * cost, the state was visited before and the estimate is irrelevant for
+	 * any considered state, hence 0 is returned for those.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	protected int getConsideredCost(long index) {
+		return considered.contains(index) ? 0 : -1;
+	}
+
 	protected boolean isValidMoveOnModel(Record rec, TIntCollection nextEvents, int activity, TIntList modelMoves) {
 		return sorting != ASynchronousMoveSorting.MODELMOVEFIRST
 				|| (rec.getPredecessor() == null || rec.getModelMove() != NOMOVE);
@@ -532,6 +546,24 @@ public abstract class AbstractAStarThread<H extends Head, T extends Tail> implem
 			throws AStarException {
 		// First, construct the next head from the old head
 		final H newHead = computeNextHead(rec, head, modelMove, movedEvent, activity);
+		processNextHead(tail, rec, newHead, modelMove, movedEvent, activity);
+	}
+
+	/**
+	 * Processes the move from the state of rec to the state of newHead. The
+	 * tail is the tail of the state of rec, which is used to compute the new
+	 * tail if the new state was not stored before.
+	 * 
+	 * @param tail
+	 * @param rec
+	 * @param newHead
+	 * @param modelMove
+	 * @param movedEvent
+	 * @param activity
+	 * @throws AStarException
+	 */
+	protected void processNextHead(T tail, Record rec, H newHead, int modelMove, int movedEvent, int activity)
+			throws AStarException {
 		final long index;
 		try {
 			index = storageHandler.getIndexOf(newHead);
@@ -545,8 +577,8 @@ public abstract class AbstractAStarThread<H extends Head, T extends Tail> implem
 
 		newRec.setEstimatedRemainingCost(ESTIMATEIRRELEVANT, true);
 
-		final int c;
-		if (!considered.contains(index)) {
+		int c = getConsideredCost(index);
+		if (c < 0) {
 			Record r = queue.contains(newRec);
 			// if r!=null then there is a record in the queue pointing to this
 			// state.
@@ -561,10 +593,6 @@ public abstract class AbstractAStarThread<H extends Head, T extends Tail> implem
 				c = -1;
 			}
 
-		} else {
-			// The state at index was visited before, hence the estimate is
-			// irrelevant
-			c = 0;
 		}
 		if (c >= 0 && c <= newRec.getCostSoFar()) {
 
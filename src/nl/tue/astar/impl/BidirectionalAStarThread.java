@@ -0,0 +1,351 @@
+package nl.tue.astar.impl;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import nl.tue.astar.AStarException;
+import nl.tue.astar.AStarObserver;
+import nl.tue.astar.Delegate;
+import nl.tue.astar.Head;
+import nl.tue.astar.Record;
+import nl.tue.astar.ReverseMoveDelegate;
+import nl.tue.astar.ReverseMoveDelegate.ReverseMove;
+import nl.tue.astar.Tail;
+import nl.tue.astar.Trace;
+
+/**
+ * AStarThread which searches forward from the initial head and backward from
+ * the final heads at the same time, until both searches meet. The forward
+ * search is the search of the AbstractAStarThread, using the estimates of the
+ * tails. The backward search uses the reverse moves and estimates of the
+ * delegate, which should implement ReverseMoveDelegate. In every step, the
+ * search with the smaller queue is advanced.
+ *
+ * Whenever a state is reached by both searches, the sum of the costs of both
+ * paths is a candidate for the cost of an optimal alignment. The search stops
+ * if the lowest total cost in one of the two queues is at least the best
+ * candidate found, at which point the candidate is optimal for the PLAIN type.
+ * The backward path is then appended to the forward record with
+ * Record.getNextRecord(), such that the returned record is a normal record
+ * ending in a final state.
+ *
+ * The backward search does not apply the ASynchronousMoveSorting, hence the
+ * moves after the meeting state may not be sorted. The state counts include
+ * the states visited and queued by the backward search, which are also
+ * available separately.
+ *
+ * The search finds a single optimal record. Once a call to getOptimalRecord
+ * found it, later calls return that record as an unreliable result, regardless
+ * of their arguments. Hence, a caller that keeps calling getOptimalRecord
+ * until the first unreliable result, as described in AStarThread, stops after
+ * the second call, without the guarantee that all states on a shortest path
+ * were visited. A call that stopped unreliably, e.g. because it was cancelled
+ * or ran out of time, returns its best guess and a later call resumes the
+ * search where it stopped.
+ *
+ * Only the forward search uses the storage handler. The backward search keeps
+ * its heads uncompressed in a HashMap and the first record polled for every
+ * state of the forward search is kept in a map as well. Hence, the memory
+ * used per state is larger than for the forward search alone, also when the
+ * storage handler compresses the states.
+ *
+ * Any implementation should, after calling the constructor, call
+ * initializeQueue(initialHead);
+ *
+ * @param <H>
+ * @param <T>
+ */
+public abstract class BidirectionalAStarThread<H extends Head, T extends Tail> extends AbstractAStarThread<H, T> {
+
+	/**
+	 * A head reached by the backward search.
+	 */
+	private static final class BackwardNode<HH extends Head> {
+		private final HH head;
+		private final int costSoFar;
+		private final int estimate;
+		// the next node on the path to a final head and the move to it
+		private final BackwardNode<HH> next;
+		private final ReverseMove<HH> move;
+		private boolean considered = false;
+
+		public BackwardNode(HH head, int costSoFar, int estimate, BackwardNode<HH> next, ReverseMove<HH> move) {
+			this.head = head;
+			this.costSoFar = costSoFar;
+			this.estimate = estimate;
+			this.next = next;
+			this.move = move;
+		}
+
+		public int getTotalCost() {
+			return costSoFar + estimate;
+		}
+	}
+
+	protected final ReverseMoveDelegate<H, T> reverseDelegate;
+
+	private H initialHead;
+	private final Map<H, BackwardNode<H>> backward = new HashMap<H, BackwardNode<H>>();
+	private final PriorityQueue<BackwardNode<H>> backwardQueue;
+	// the first record polled for each state by the forward search
+	private final TLongObjectMap<Record> forward = new TLongObjectHashMap<Record>();
+
+	private int backwardVisitedStateCount = 0;
+	private int backwardQueuedStateCount = 0;
+	private int backwardTraversedArcCount = 0;
+
+	// the best meeting point so far
+	private int bestCost = Integer.MAX_VALUE;
+	private Record bestForward = null;
+	private BackwardNode<H> bestBackward = null;
+
+	private Record result = null;
+
+	/**
+	 * any implementation should, after calling this constructor, call
+	 * initializeQueue(initialHead);
+	 *
+	 * @param delegate
+	 *            the delegate, which should implement ReverseMoveDelegate
+	 * @param trace
+	 * @param maxStates
+	 *            the maximum number of states visited by both searches
+	 *            together
+	 * @param storageHandler
+	 */
+	@SuppressWarnings("unchecked")
+	public BidirectionalAStarThread(Delegate<H, T> delegate, Trace trace, int maxStates,
+			StorageHandler<H, T> storageHandler) {
+		super(delegate, trace, maxStates, storageHandler);
+		if (!(delegate instanceof ReverseMoveDelegate)) {
+			throw new IllegalArgumentException("The delegate should implement ReverseMoveDelegate.");
+		}
+		this.reverseDelegate = (ReverseMoveDelegate<H, T>) delegate;
+		this.backwardQueue = new PriorityQueue<BackwardNode<H>>(1000, new Comparator<BackwardNode<H>>() {
+			public int compare(BackwardNode<H> n1, BackwardNode<H> n2) {
+				int c1 = n1.getTotalCost();
+				int c2 = n2.getTotalCost();
+				if (c1 != c2) {
+					return c1 < c2 ? -1 : 1;
+				}
+				// prefer depth
+				return n1.costSoFar > n2.costSoFar ? -1 : (n1.costSoFar == n2.costSoFar ? 0 : 1);
+			}
+		});
+	}
+
+	protected void initializeQueue(H head) throws AStarException {
+		super.initializeQueue(head);
+		this.initialHead = head;
+		for (H finalHead : reverseDelegate.createFinalHeads(head, trace)) {
+			if (!backward.containsKey(finalHead)) {
+				queueBackward(new BackwardNode<H>(finalHead, 0, reverseDelegate.getReverseEstimate(finalHead, head,
+						trace), null, null));
+			}
+		}
+	}
+
+	private void queueBackward(BackwardNode<H> node) {
+		backward.put(node.head, node);
+		backwardQueue.add(node);
+		backwardQueuedStateCount++;
+	}
+
+	public Record getOptimalRecord(final Canceller c, final int stopAt, final double timeLimit) throws AStarException {
+		if (result != null) {
+			// no other optimal records are searched for
+			this.reliable = false;
+			for (AStarObserver observer : observers) {
+				observer.stoppedUnreliablyAt(result);
+			}
+			return result;
+		}
+		Record rec = null;
+		final long endTime = System.currentTimeMillis() + (int) (1000 * timeLimit);
+
+		queue.setMaxCost(stopAt);
+
+		// the forward search goes first, such that the initial state is
+		// known when the backward search reaches it.
+		boolean forwardStep = true;
+		while (!c.isCancelled() && (timeLimit < 0 || System.currentTimeMillis() < endTime)) {
+			skipConsideredBackward();
+			if (queue.isEmpty() || backwardQueue.isEmpty()) {
+				// either all reachable states were visited, or none of the
+				// remaining ones can reach a final state.
+				if (bestForward != null) {
+					return found();
+				}
+				break;
+			}
+			final double lowerBound = Math.max(queue.peek().getTotalCost(), backwardQueue.peek().getTotalCost());
+			if (bestCost <= lowerBound) {
+				return found();
+			}
+			if (getVisitedStateCount() >= maxStates || lowerBound > stopAt) {
+				break;
+			}
+
+			if (forwardStep) {
+				rec = forwardStep(stopAt, timeLimit, endTime);
+				forwardStep = false;
+			} else if (queue.size() <= backwardQueue.size()) {
+				rec = forwardStep(stopAt, timeLimit, endTime);
+			} else {
+				backwardStep();
+			}
+		}
+
+		// unreliable, best guess:
+		this.reliable = false;
+		for (AStarObserver observer : observers) {
+			observer.stoppedUnreliablyAt(rec);
+		}
+		return rec;
+	}
+
+	private Record forwardStep(int stopAt, double timeLimit, long endTime) throws AStarException {
+		Record rec = poll();
+		poll++;
+
+		final State<H, T> state = storageHandler.getStoredState(rec);
+		final H head = state.getHead();
+		final T tail = state.getTail();
+
+		if (!forward.containsKey(rec.getState())) {
+			forward.put(rec.getState(), rec);
+		}
+		if (head.isFinal(delegate)) {
+			meet(rec, null);
+			return rec;
+		}
+		BackwardNode<H> node = backward.get(head);
+		if (node != null) {
+			meet(rec, node);
+		}
+
+		processMovesForRecord(rec, head, tail, stopAt, timeLimit, endTime);
+		return rec;
+	}
+
+	private void skipConsideredBackward() {
+		while (!backwardQueue.isEmpty()
+				&& (backwardQueue.peek().considered || backward.get(backwardQueue.peek().head) != backwardQueue
+						.peek())) {
+			// considered before, or reached with lower cost later
+			backwardQueue.poll();
+		}
+	}
+
+	private void backwardStep() throws AStarException {
+		final BackwardNode<H> node = backwardQueue.poll();
+		node.considered = true;
+		backwardVisitedStateCount++;
+
+		final long index = storageHandler.getIndexOf(node.head);
+		if (index >= 0) {
+			Record rec = forward.get(index);
+			if (rec != null) {
+				meet(rec, node);
+			}
+		}
+
+		for (ReverseMove<H> move : reverseDelegate.getReverseMoves(node.head, trace)) {
+			backwardTraversedArcCount++;
+			final H previous = move.getPreviousHead();
+			final int cost = node.costSoFar + move.getCost();
+			BackwardNode<H> old = backward.get(previous);
+			if (old != null && old.costSoFar <= cost) {
+				continue;
+			}
+			queueBackward(new BackwardNode<H>(previous, cost, old != null ? old.estimate : reverseDelegate
+					.getReverseEstimate(previous, initialHead, trace), node, move));
+		}
+	}
+
+	private void meet(Record rec, BackwardNode<H> node) {
+		int cost = rec.getCostSoFar() + (node == null ? 0 : node.costSoFar);
+		if (cost < bestCost) {
+			bestCost = cost;
+			bestForward = rec;
+			bestBackward = node;
+		}
+	}
+
+	/**
+	 * appends the backward path of the best meeting point to the forward
+	 * record.
+	 */
+	@SuppressWarnings("unchecked")
+	private Record found() throws AStarException {
+		Record rec = bestForward;
+		BackwardNode<H> node = bestBackward;
+		T tail = storageHandler.getStoredState(rec).getTail();
+		while (node != null && node.next != null) {
+			final ReverseMove<H> move = node.move;
+			final H head = node.next.head;
+			final long index = storageHandler.getIndexOf(head);
+			final Record next = rec.getNextRecord(delegate, trace, head, index, move.getModelMove(),
+					move.getMovedEvent(), move.getActivity());
+			traversedArcCount++;
+			if (index < 0) {
+				tail = (T) tail.getNextTail(delegate, head, move.getModelMove(), move.getMovedEvent(),
+						move.getActivity());
+				storageHandler.storeStateForRecord(new State<H, T>(head, tail), next);
+			} else {
+				tail = storageHandler.getStoredState(next).getTail();
+			}
+			next.setEstimatedRemainingCost(0, true);
+			for (AStarObserver observer : observers) {
+				observer.edgeTraversed(rec, next);
+			}
+			rec = next;
+			node = node.next;
+		}
+		assert rec.getCostSoFar() == bestCost;
+
+		this.result = rec;
+		this.reliable = true;
+		for (AStarObserver observer : observers) {
+			observer.finalNodeFound(rec);
+		}
+		return rec;
+	}
+
+	public int getVisitedStateCount() {
+		return poll + backwardVisitedStateCount;
+	}
+
+	public int getQueuedStateCount() {
+		return queuedStateCount + backwardQueuedStateCount;
+	}
+
+	public int getTraversedArcCount() {
+		return traversedArcCount + backwardTraversedArcCount;
+	}
+
+	/**
+	 * Returns the number of states visited by the backward search, which is
+	 * included in getVisitedStateCount().
+	 *
+	 * @return
+	 */
+	public int getBackwardVisitedStateCount() {
+		return backwardVisitedStateCount;
+	}
+
+	/**
+	 * Returns the number of states queued by the backward search, which is
+	 * included in getQueuedStateCount().
+	 *
+	 * @return
+	 */
+	public int getBackwardQueuedStateCount() {
+		return backwardQueuedStateCount;
+	}
+}
@@ -0,0 +1,566 @@
+package nl.tue.astar.impl;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.tue.astar.AStarException;
+import nl.tue.astar.AStarObserver;
+import nl.tue.astar.Delegate;
+import nl.tue.astar.Head;
+import nl.tue.astar.Record;
+import nl.tue.astar.Tail;
+import nl.tue.astar.Trace;
+import nl.tue.astar.util.BreadthFirstFastLookupPriorityQueue;
+import nl.tue.astar.util.DepthFirstFastLookupPriorityQueue;
+import nl.tue.astar.util.FastLookupPriorityQueue;
+import nl.tue.astar.util.RandomFastLookupPriorityQueue;
+
+/**
+ * AStarThread that distributes the search for one trace over a number of
+ * workers (hash distributed A Star). Every state is owned by exactly one
+ * worker, determined by the hash code of its head. Each worker keeps its own
+ * priority queue and set of considered states, expands the records in its own
+ * queue and sends the successors that belong to other workers to the inbox of
+ * their owner. Since a state is only ever looked up, stored and queued by its
+ * owner, the workers only share the storage handler, which should be
+ * Thread-safe.
+ *
+ * As the workers do not expand the records in a global order of cost, a
+ * worker may consider a state before the cheapest path to it is found. Such a
+ * state is reopened when it is reached again with lower cost.
+ *
+ * A final record found by a worker becomes the incumbent if it is cheaper than
+ * the current one. Workers only expand records which are cheaper than the
+ * incumbent and the search terminates if no worker has such a record left
+ * and no successors are in transit. At that point, no record with lower cost
+ * than the incumbent remains, hence the incumbent is optimal under the same
+ * conditions as for the sequential search. The order in which records of
+ * equal cost are expanded is not deterministic, so repeated searches may
+ * return different optimal records.
+ *
+ * The caller of getOptimalRecord acts as the first worker, the other workers
+ * run in their own threads for the duration of the call. Observers are
+ * notified from all workers and should therefore be Thread-safe. Furthermore,
+ * the successors of one record can be processed by different workers at the
+ * same time, hence Tail.getNextTail should not modify the tail it is called
+ * on.
+ *
+ * The queueing model of the workers is set by setQueueingModel(). Queues set
+ * through setQueue() are not used by the workers.
+ *
+ * Any implementation should, after calling the constructor, call
+ * initializeQueue(initialHead);
+ *
+ * @param <H>
+ * @param <T>
+ */
+public abstract class HashDistributedAStarThread<H extends Head, T extends Tail> extends AbstractAStarThread<H, T> {
+
+	/**
+	 * A successor of a record sent to the worker owning the successor's head.
+	 */
+	private final class Successor {
+		private final T tail;
+		private final Record rec;
+		private final H newHead;
+		private final int modelMove;
+		private final int movedEvent;
+		private final int activity;
+
+		public Successor(T tail, Record rec, H newHead, int modelMove, int movedEvent, int activity) {
+			this.tail = tail;
+			this.rec = rec;
+			this.newHead = newHead;
+			this.modelMove = modelMove;
+			this.movedEvent = movedEvent;
+			this.activity = activity;
+		}
+	}
+
+	/**
+	 * The cheapest final record found so far and the worker that polled it.
+	 */
+	private final class Incumbent {
+		private final Record rec;
+		private final Worker owner;
+
+		public Incumbent(Record rec, Worker owner) {
+			this.rec = rec;
+			this.owner = owner;
+		}
+	}
+
+	private final class Worker extends AbstractAStarThread<H, T> implements Runnable {
+
+		private final ConcurrentLinkedQueue<Successor> inbox = new ConcurrentLinkedQueue<Successor>();
+		// final records replaced as incumbent, to be requeued after the search
+		private final ConcurrentLinkedQueue<Record> displaced = new ConcurrentLinkedQueue<Record>();
+		// the cost so far with which each considered state was expanded
+		private final TLongIntMap consideredCost = new TLongIntHashMap(1000, 0.5f, -2l, -1);
+		private volatile Thread thread;
+		private volatile boolean idle;
+		private Record last;
+
+		// parameters of the current search
+		private Canceller canceller;
+		private int stopAt;
+		private double timeLimit;
+		private long endTime;
+
+		public Worker() {
+			super(HashDistributedAStarThread.this.delegate, HashDistributedAStarThread.this.trace,
+					HashDistributedAStarThread.this.maxStates, HashDistributedAStarThread.this.storageHandler);
+			this.observers = HashDistributedAStarThread.this.observers;
+		}
+
+		/**
+		 * sets the parameters for the next search
+		 */
+		private void prepare(Canceller c, int stopAt, double timeLimit, long endTime) {
+			this.canceller = c;
+			this.stopAt = stopAt;
+			this.timeLimit = timeLimit;
+			this.endTime = endTime;
+			this.last = null;
+			this.idle = false;
+			this.sorting = HashDistributedAStarThread.this.sorting;
+			this.type = HashDistributedAStarThread.this.type;
+			this.epsilon = HashDistributedAStarThread.this.epsilon;
+			this.expectedLength = HashDistributedAStarThread.this.expectedLength;
+			queue.setMaxCost(stopAt);
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+			try {
+				while (!finished) {
+					if (receive()) {
+						continue;
+					}
+					Record rec = queue.peek();
+					if (rec != null && rec.getTotalCost() <= stopAt && isBelowIncumbent(rec)) {
+						if (idle) {
+							idle = false;
+							work.incrementAndGet();
+						}
+						expand();
+					} else if (!idle) {
+						// nothing to do until a successor comes in.
+						idle = true;
+						if (work.decrementAndGet() == 0) {
+							// no worker is busy and no successors are in
+							// transit, hence no worker can become busy again.
+							finish();
+						}
+					} else {
+						LockSupport.parkNanos(this, PARKNANOS);
+					}
+				}
+			} catch (AStarException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(new AStarException(e));
+			} catch (Error e) {
+				fail(new AStarException(e));
+			} finally {
+				thread = null;
+			}
+		}
+
+		/**
+		 * processes all successors in the inbox, returns true if there were
+		 * any.
+		 */
+		private boolean receive() throws AStarException {
+			Successor s = inbox.poll();
+			if (s == null) {
+				return false;
+			}
+			if (idle) {
+				// the successor is counted as work, so the counter cannot
+				// reach 0 before this increment
+				idle = false;
+				work.incrementAndGet();
+			}
+			do {
+				processNextHead(s.tail, s.rec, s.newHead, s.modelMove, s.movedEvent, s.activity);
+				work.decrementAndGet();
+				s = inbox.poll();
+			} while (s != null && !finished);
+			return true;
+		}
+
+		private void send(Successor s) {
+			work.incrementAndGet();
+			inbox.offer(s);
+			if (idle) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		private void expand() throws AStarException {
+			final Record rec = queue.poll();
+			poll++;
+			last = rec;
+			final int polled = polls.incrementAndGet();
+
+			final State<H, T> state = storageHandler.getStoredState(rec);
+			final H head = state.getHead();
+			final T tail = state.getTail();
+
+			if (head.isFinal(delegate)) {
+				offerIncumbent(rec, this);
+				return;
+			}
+
+			if (polled >= maxStates || canceller.isCancelled()
+					|| (timeLimit >= 0 && System.currentTimeMillis() > endTime)) {
+				// unreliable, best guess:
+				abort(rec);
+				return;
+			}
+
+			processMovesForRecord(rec, head, tail, stopAt, timeLimit, endTime);
+		}
+
+		protected void processMove(H head, T tail, Record rec, int modelMove, int movedEvent, int activity)
+				throws AStarException {
+			final H newHead = computeNextHead(rec, head, modelMove, movedEvent, activity);
+			final Worker owner = getOwner(newHead);
+			if (owner == this) {
+				processNextHead(tail, rec, newHead, modelMove, movedEvent, activity);
+			} else {
+				owner.send(new Successor(tail, rec, newHead, modelMove, movedEvent, activity));
+			}
+		}
+
+		/**
+		 * A worker can consider a state before a cheaper path to that state,
+		 * which passes through other workers, arrives. Such a state is
+		 * reopened, hence the cost of considered states is kept.
+		 */
+		protected void setConsidered(Record record) {
+			int c = consideredCost.get(record.getState());
+			if (c < 0 || record.getCostSoFar() < c) {
+				consideredCost.put(record.getState(), record.getCostSoFar());
+			}
+			for (AStarObserver observer : observers) {
+				observer.nodeVisited(record);
+			}
+		}
+
+		protected int getConsideredCost(long index) {
+			return consideredCost.get(index);
+		}
+
+		/**
+		 * processes the successors left in the inbox by a search that was
+		 * aborted and requeues the displaced final records, such that the
+		 * next search does not miss them.
+		 */
+		private void drain() throws AStarException {
+			Successor s;
+			while ((s = inbox.poll()) != null) {
+				processNextHead(s.tail, s.rec, s.newHead, s.modelMove, s.movedEvent, s.activity);
+			}
+			Record rec;
+			while ((rec = displaced.poll()) != null) {
+				requeue(rec);
+			}
+		}
+
+		private void requeue(Record rec) {
+			if (queue.add(rec)) {
+				queuedStateCount++;
+			}
+		}
+	}
+
+	/**
+	 * the time in nanoseconds an idle worker sleeps before checking its inbox
+	 * again, should it miss a wake-up call.
+	 */
+	private static final long PARKNANOS = 1000000;
+
+	protected final int threads;
+	protected QueueingModel queueingModel = QueueingModel.DEPTHFIRST;
+
+	private Worker[] workers;
+
+	// the number of busy workers plus the number of successors in transit
+	private final AtomicInteger work = new AtomicInteger();
+	private final AtomicInteger polls = new AtomicInteger();
+	private final AtomicReference<Incumbent> incumbent = new AtomicReference<Incumbent>();
+	private final AtomicReference<AStarException> failure = new AtomicReference<AStarException>();
+	private volatile Record abortedAt;
+	private volatile boolean finished;
+
+	/**
+	 * any implementation should, after calling this constructor, call
+	 * initializeQueue(initialHead);
+	 *
+	 * @param delegate
+	 * @param trace
+	 * @param maxStates
+	 *            the maximum number of states visited by all workers together
+	 * @param storageHandler
+	 *            the storage handler shared by all workers, which should be
+	 *            Thread-safe
+	 * @param threads
+	 *            the number of workers
+	 */
+	public HashDistributedAStarThread(Delegate<H, T> delegate, Trace trace, int maxStates,
+			StorageHandler<H, T> storageHandler, int threads) {
+		super(delegate, trace, maxStates, storageHandler);
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one worker is needed.");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the queueing model of the workers.
+	 *
+	 * @throws IllegalStateException
+	 *             if the workers were already created by a search
+	 */
+	public void setQueueingModel(QueueingModel model) {
+		if (workers != null) {
+			throw new IllegalStateException("Cannot change the queue after the search started.");
+		}
+		super.setQueueingModel(model);
+		this.queueingModel = model;
+	}
+
+	private FastLookupPriorityQueue createQueue() {
+		switch (queueingModel) {
+			case BREADTHFIRST :
+				return new BreadthFirstFastLookupPriorityQueue(1000);
+			case RANDOM :
+				return new RandomFastLookupPriorityQueue(1000, 0.5);
+			case BREADTHFIRSTWITHCERTAINTYPRIORITY :
+				return new BreadthFirstFastLookupPriorityQueue(1000, true);
+			case DEPTHFIRSTWITHCERTAINTYPRIORITY :
+				return new DepthFirstFastLookupPriorityQueue(1000, true);
+			default :
+				return new DepthFirstFastLookupPriorityQueue(1000);
+		}
+	}
+
+	/**
+	 * creates the workers on the first search and hands them the initial
+	 * record.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void createWorkers() throws AStarException {
+		workers = new HashDistributedAStarThread.Worker[threads];
+		for (int w = 0; w < threads; w++) {
+			workers[w] = new Worker();
+			workers[w].queue = createQueue();
+		}
+		while (!queue.isEmpty()) {
+			Record rec = queue.poll();
+			Worker owner = getOwner(storageHandler.getStoredState(rec).getHead());
+			owner.requeue(rec);
+		}
+	}
+
+	private Worker getOwner(H head) {
+		int h = head.hashCode() * 0x9E3779B9;
+		return workers[((h ^ (h >>> 16)) & 0x7fffffff) % workers.length];
+	}
+
+	private boolean isBelowIncumbent(Record rec) {
+		Incumbent inc = incumbent.get();
+		return inc == null || rec.getTotalCost() < inc.rec.getTotalCost();
+	}
+
+	private void offerIncumbent(Record rec, Worker owner) {
+		final Incumbent next = new Incumbent(rec, owner);
+		Incumbent inc;
+		do {
+			inc = incumbent.get();
+			if (inc != null && inc.rec.getTotalCost() <= rec.getTotalCost()) {
+				// a final record of equal or lower cost is known. Keep this
+				// one for a next search.
+				owner.requeue(rec);
+				return;
+			}
+		} while (!incumbent.compareAndSet(inc, next));
+		if (inc != null) {
+			// the queue of the old owner belongs to another thread.
+			inc.owner.displaced.offer(inc.rec);
+		}
+	}
+
+	private void abort(Record rec) {
+		if (abortedAt == null) {
+			abortedAt = rec;
+		}
+		finish();
+	}
+
+	private void fail(AStarException e) {
+		failure.compareAndSet(null, e);
+		finish();
+	}
+
+	private void finish() {
+		finished = true;
+		for (Worker worker : workers) {
+			Thread t = worker.thread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	public Record getOptimalRecord(final Canceller c, final int stopAt, final double timeLimit) throws AStarException {
+		final long endTime = System.currentTimeMillis() + (int) (1000 * timeLimit);
+
+		if (workers == null) {
+			createWorkers();
+		}
+		for (Worker worker : workers) {
+			worker.prepare(c, stopAt, timeLimit, endTime);
+		}
+		incumbent.set(null);
+		abortedAt = null;
+		finished = false;
+		work.set(workers.length);
+
+		Thread[] started = new Thread[workers.length];
+		for (int w = 1; w < workers.length; w++) {
+			started[w] = new Thread(workers[w], "A Star worker " + w + " for " + trace.getLabel());
+			started[w].start();
+		}
+		workers[0].run();
+		boolean interrupted = false;
+		for (int w = 1; w < workers.length; w++) {
+			while (true) {
+				try {
+					started[w].join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					finish();
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure.get() != null) {
+			throw failure.getAndSet(null);
+		}
+		for (Worker worker : workers) {
+			worker.drain();
+		}
+
+		Incumbent inc = incumbent.get();
+		Record rec = abortedAt;
+		if (rec == null) {
+			// the search terminated. The incumbent is optimal, unless a
+			// cheaper record was not polled as it exceeded stopAt.
+			Worker min = null;
+			for (Worker worker : workers) {
+				Record r = worker.queue.peek();
+				if (r != null && (min == null || r.getTotalCost() < min.queue.peek().getTotalCost())) {
+					min = worker;
+				}
+			}
+			if (inc != null && (min == null || inc.rec.getTotalCost() <= min.queue.peek().getTotalCost())) {
+				this.reliable = true;
+				for (AStarObserver observer : observers) {
+					observer.finalNodeFound(inc.rec);
+				}
+				return inc.rec;
+			}
+			if (min != null) {
+				// poll the cheapest record, like the sequential search would.
+				rec = min.queue.poll();
+				min.poll++;
+				if (storageHandler.getStoredState(rec).getHead().isFinal(delegate)) {
+					if (inc != null) {
+						inc.owner.requeue(inc.rec);
+					}
+					this.reliable = true;
+					for (AStarObserver observer : observers) {
+						observer.finalNodeFound(rec);
+					}
+					return rec;
+				}
+			} else {
+				for (Worker worker : workers) {
+					if (worker.last != null) {
+						rec = worker.last;
+					}
+				}
+			}
+		}
+		if (inc != null) {
+			inc.owner.requeue(inc.rec);
+		}
+
+		this.reliable = false;
+		for (AStarObserver observer : observers) {
+			observer.stoppedUnreliablyAt(rec);
+		}
+		return rec;
+	}
+
+	public int getVisitedStateCount() {
+		int count = poll;
+		if (workers != null) {
+			for (Worker worker : workers) {
+				count += worker.getVisitedStateCount();
+			}
+		}
+		return count;
+	}
+
+	public int getQueuedStateCount() {
+		int count = queuedStateCount;
+		if (workers != null) {
+			for (Worker worker : workers) {
+				count += worker.getQueuedStateCount();
+			}
+		}
+		return count;
+	}
+
+	public int getTraversedArcCount() {
+		int count = traversedArcCount;
+		if (workers != null) {
+			for (Worker worker : workers) {
+				count += worker.getTraversedArcCount();
+			}
+		}
+		return count;
+	}
+
+	public int getComputedEstimateCount() {
+		int count = computedEstimateCount;
+		if (workers != null) {
+			for (Worker worker : workers) {
+				count += worker.getComputedEstimateCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of workers
+	 *
+	 * @return
+	 */
+	public int getThreadCount() {
+		return threads;
+	}
+}
@@ -12,6 +12,7 @@ import nl.tue.storage.Deflater;
 import nl.tue.storage.EqualOperation;
 import nl.tue.storage.HashOperation;
 import nl.tue.storage.Inflater;
+import nl.tue.storage.ProbeOperation;
 import nl.tue.storage.StorageException;
 
 public class StateCompressor<H extends Head, T extends Tail> implements
@@ -51,6 +52,23 @@ public class StateCompressor<H extends Head, T extends Tail> implements
 		return new State<H, T>(head, tail);
 	}
 
+	/**
+	 * Returns the operation to look up states by their head, without
+	 * constructing a State. This is only available if the head-based equal
+	 * operation of the delegate also implements ProbeOperation<H, State<H,
+	 * T>>, otherwise null is returned.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public ProbeOperation<H, State<H, T>> getHeadProbeOperation() {
+		EqualOperation<State<H, T>> eq = delegate.getHeadBasedEqualOperation();
+		if (eq instanceof ProbeOperation) {
+			return (ProbeOperation<H, State<H, T>>) eq;
+		}
+		return null;
+	}
+
 	public int getMaxByteCount() {
 		int hb = delegate.getHeadDeflater().getMaxByteCount();
 		int tb = delegate.getTailDeflater().getMaxByteCount();
@@ -1,12 +1,22 @@
 package nl.tue.astar.impl.memefficient;
 
+import java.io.File;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import nl.tue.astar.Head;
 import nl.tue.astar.Tail;
 import nl.tue.astar.impl.State;
 import nl.tue.astar.impl.StateCompressor;
 import nl.tue.storage.CompressedHashSet;
 import nl.tue.storage.CompressedStore;
+import nl.tue.storage.CompressedStoreFactory;
+import nl.tue.storage.ConcurrentCompressedHashSet;
+import nl.tue.storage.ProbeOperation;
 import nl.tue.storage.impl.CompressedStoreHashSetImpl;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
+import nl.tue.storage.impl.ConcurrentCompressedStoreHashSetImpl;
+import nl.tue.storage.impl.CompressedStoreImpl.Allocation;
 
 public class MemoryEfficientAStarAlgorithm<H extends Head, T extends Tail> {
 
@@ -14,13 +24,28 @@ public class MemoryEfficientAStarAlgorithm<H extends Head, T extends Tail> {
 	private final CompressedStore<State<H, T>> store;
 	private final StorageAwareDelegate<H, T> delegate;
 	private final StateCompressor<H, T> compressor;
+	// the lock shared by all threads using a statespace that is not
+	// Thread-safe by itself, null otherwise.
+	private final ReentrantReadWriteLock lock;
 	
 	private static int alignment = 0;
+	private static CompressedStoreFactory storeFactory = null;
+	private static Boolean concurrent = null;
+	private static ProbeFilter probeFilter = null;
+	private static Layout layout = null;
+	private static Boolean incremental = null;
+	private static Boolean parallelRehash = null;
+	private static Boolean longPointers = null;
+	private static int bloomBits = -1;
 
 	public MemoryEfficientAStarAlgorithm(StorageAwareDelegate<H, T> delegate) {
 		this(delegate, 32 * 1024 , 64 * 1024, get_alignment());
 	}
 
+	public MemoryEfficientAStarAlgorithm(StorageAwareDelegate<H, T> delegate, CompressedStoreFactory storeFactory) {
+		this(delegate, 32 * 1024, 64 * 1024, get_alignment(), storeFactory);
+	}
+
 	/*
 	 * HV: Get the alignment, can be set by the user by providing the ALIGNMENT environment variable.
 	 * This alignment can be used to configure the amount of memory the replayer can maximally handle:
@@ -50,15 +75,294 @@ public class MemoryEfficientAStarAlgorithm<H extends Head, T extends Tail> {
 		}
 		return alignment;
 	}
-	
+
+	/*
+	 * Get the factory for the backing store, can be set by the user by providing
+	 * the nl.tue.astar.impl.memefficient.store property or the STORE environment
+	 * variable:
+	 * STORE = heap:   blocks are byte arrays on the Java heap (default)
+	 *         concurrent: heap blocks, space is reserved lock-free
+	 *         threadlocal: heap blocks, each thread reserves space in its own
+	 *                 chunk of the store
+	 *         sizeclass: heap blocks in separate pools per object size
+	 *         compacting: heap blocks, of which the least recently used ones
+	 *                 are compressed in the background
+	 *         direct: blocks are direct buffers outside of the Java heap
+	 *         mapped: blocks are memory-mapped segments of a temporary file in
+	 *                 the directory given by nl.tue.astar.impl.memefficient.store.dir
+	 *                 (or java.io.tmpdir)
+	 */
+	private static CompressedStoreFactory get_storeFactory() {
+		if (storeFactory == null) {
+			String storeAsString = null;
+			try {
+				storeAsString = System.getProperty("nl.tue.astar.impl.memefficient.store");
+				if (storeAsString == null) {
+					storeAsString = System.getenv("STORE");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			if ("direct".equalsIgnoreCase(storeAsString)) {
+				storeFactory = new CompressedStoreFactory.Direct();
+			} else if ("mapped".equalsIgnoreCase(storeAsString)) {
+				String dir = System.getProperty("nl.tue.astar.impl.memefficient.store.dir");
+				storeFactory = new CompressedStoreFactory.Mapped(dir == null ? null : new File(dir));
+			} else if ("concurrent".equalsIgnoreCase(storeAsString)) {
+				storeFactory = new CompressedStoreFactory.Heap(Allocation.CONCURRENT);
+			} else if ("compacting".equalsIgnoreCase(storeAsString)) {
+				storeFactory = new CompressedStoreFactory.Compacting();
+			} else if ("sizeclass".equalsIgnoreCase(storeAsString)) {
+				storeFactory = new CompressedStoreFactory.SizeClass();
+			} else if ("threadlocal".equalsIgnoreCase(storeAsString)) {
+				storeFactory = new CompressedStoreFactory.Heap(Allocation.THREADLOCAL);
+			} else {
+				storeFactory = new CompressedStoreFactory.Heap();
+			}
+			System.out.println("[MemoryEfficientAStarAlgorithm] Using "
+					+ storeFactory.getClass().getSimpleName().toLowerCase() + " store.");
+		}
+		return storeFactory;
+	}
+
+	/*
+	 * Get whether the statespace should be a concurrent set, can be set by the
+	 * user by providing the nl.tue.astar.impl.memefficient.concurrent property or
+	 * the CONCURRENT environment variable (true or false, default false). A
+	 * concurrent statespace can be used by multiple threads without a global lock.
+	 */
+	private static boolean is_concurrent() {
+		if (concurrent == null) {
+			String concurrentAsString = null;
+			try {
+				concurrentAsString = System.getProperty("nl.tue.astar.impl.memefficient.concurrent");
+				if (concurrentAsString == null) {
+					concurrentAsString = System.getenv("CONCURRENT");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			concurrent = Boolean.valueOf(concurrentAsString);
+			System.out.println("[MemoryEfficientAStarAlgorithm] Using "
+					+ (concurrent ? "concurrent" : "locked") + " statespace.");
+		}
+		return concurrent;
+	}
+
+	/*
+	 * Get what the statespace keeps per state to avoid inflating stored states,
+	 * can be set by the user by providing the nl.tue.astar.impl.memefficient.filter
+	 * property or the FILTER environment variable:
+	 * FILTER = none:        nothing is kept (default)
+	 *          fingerprint: 16 bits of the hash code (2 bytes per slot), most
+	 *                       states on a probe path are not inflated
+	 *          hashcode:    the hash code (4 bytes per slot), also growing the
+	 *                       statespace does not inflate stored states
+	 */
+	private static ProbeFilter get_probeFilter() {
+		if (probeFilter == null) {
+			String filterAsString = null;
+			try {
+				filterAsString = System.getProperty("nl.tue.astar.impl.memefficient.filter");
+				if (filterAsString == null) {
+					filterAsString = System.getenv("FILTER");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			probeFilter = ProbeFilter.NONE;
+			for (ProbeFilter filter : ProbeFilter.values()) {
+				if (filter.name().equalsIgnoreCase(filterAsString)) {
+					probeFilter = filter;
+				}
+			}
+			System.out.println("[MemoryEfficientAStarAlgorithm] Using probe filter " + probeFilter + ".");
+		}
+		return probeFilter;
+	}
+
+	/*
+	 * Get the layout of the table of the statespace, can be set by the user by
+	 * providing the nl.tue.astar.impl.memefficient.layout property or the LAYOUT
+	 * environment variable:
+	 * LAYOUT = doublehashing: prime capacity, double hashing (default)
+	 *          linear:        power of two capacity, linear probing
+	 */
+	private static Layout get_layout() {
+		if (layout == null) {
+			String layoutAsString = null;
+			try {
+				layoutAsString = System.getProperty("nl.tue.astar.impl.memefficient.layout");
+				if (layoutAsString == null) {
+					layoutAsString = System.getenv("LAYOUT");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			layout = Layout.DOUBLEHASHING;
+			for (Layout l : Layout.values()) {
+				if (l.name().equalsIgnoreCase(layoutAsString)) {
+					layout = l;
+				}
+			}
+			System.out.println("[MemoryEfficientAStarAlgorithm] Using layout " + layout + ".");
+		}
+		return layout;
+	}
+
+	/*
+	 * Get whether the statespace should grow incrementally, can be set by the
+	 * user by providing the nl.tue.astar.impl.memefficient.incremental property or
+	 * the INCREMENTAL environment variable (true or false, default false). If
+	 * true, growing the statespace is spread over the next additions, instead of
+	 * blocking the adding thread (and with it all other threads) until all states
+	 * are rehashed.
+	 */
+	private static boolean is_incremental() {
+		if (incremental == null) {
+			String incrementalAsString = null;
+			try {
+				incrementalAsString = System.getProperty("nl.tue.astar.impl.memefficient.incremental");
+				if (incrementalAsString == null) {
+					incrementalAsString = System.getenv("INCREMENTAL");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			incremental = Boolean.valueOf(incrementalAsString);
+			System.out.println("[MemoryEfficientAStarAlgorithm] Incremental rehash: " + incremental);
+		}
+		return incremental;
+	}
+
+	/*
+	 * Get whether the statespace should be rehashed in parallel, can be set by
+	 * the user by providing the nl.tue.astar.impl.memefficient.parallelrehash
+	 * property or the PARALLELREHASH environment variable (true or false, default
+	 * false). If true, growing a large statespace uses a thread per processor.
+	 */
+	private static boolean is_parallelRehash() {
+		if (parallelRehash == null) {
+			String parallelAsString = null;
+			try {
+				parallelAsString = System.getProperty("nl.tue.astar.impl.memefficient.parallelrehash");
+				if (parallelAsString == null) {
+					parallelAsString = System.getenv("PARALLELREHASH");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			parallelRehash = Boolean.valueOf(parallelAsString);
+			System.out.println("[MemoryEfficientAStarAlgorithm] Parallel rehash: " + parallelRehash);
+		}
+		return parallelRehash;
+	}
+
+	/*
+	 * Get whether the statespace should keep 8 byte pointers, can be set by the
+	 * user by providing the nl.tue.astar.impl.memefficient.longpointers property
+	 * or the LONGPOINTERS environment variable (true or false, default false).
+	 * With long pointers, the size of the store is not limited by the alignment,
+	 * at the cost of 4 more bytes per slot. A concurrent statespace can hold more
+	 * than 2^31 states, a locked one about 2^30.
+	 */
+	private static boolean is_longPointers() {
+		if (longPointers == null) {
+			String longPointersAsString = null;
+			try {
+				longPointersAsString = System.getProperty("nl.tue.astar.impl.memefficient.longpointers");
+				if (longPointersAsString == null) {
+					longPointersAsString = System.getenv("LONGPOINTERS");
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			longPointers = Boolean.valueOf(longPointersAsString);
+			System.out.println("[MemoryEfficientAStarAlgorithm] Long pointers: " + longPointers);
+		}
+		return longPointers;
+	}
+
+	/*
+	 * Get the number of bits per state of the Bloom filter in front of the
+	 * statespace, can be set by the user by providing the
+	 * nl.tue.astar.impl.memefficient.bloom property or the BLOOM environment
+	 * variable (default 0, i.e. no Bloom filter). The filter answers most lookups
+	 * of new states without probing the statespace. With 8 bits per state, less
+	 * than 1% of these lookups pass the filter.
+	 */
+	private static int get_bloomBits() {
+		if (bloomBits < 0) {
+			bloomBits = 0;
+			try {
+				String bloomAsString = System.getProperty("nl.tue.astar.impl.memefficient.bloom");
+				if (bloomAsString == null) {
+					bloomAsString = System.getenv("BLOOM");
+				}
+				if (bloomAsString != null) {
+					bloomBits = Integer.parseInt(bloomAsString);
+				}
+			} catch (Exception e) {
+				// Ignore.
+			}
+			System.out.println("[MemoryEfficientAStarAlgorithm] Bloom filter bits per state: " + bloomBits);
+		}
+		return bloomBits;
+	}
+
 	public MemoryEfficientAStarAlgorithm(StorageAwareDelegate<H, T> delegate,
 			int blocksize, int initialCapacity, int alignment) {
+		this(delegate, blocksize, initialCapacity, alignment, get_storeFactory());
+	}
+
+	public MemoryEfficientAStarAlgorithm(StorageAwareDelegate<H, T> delegate, int blocksize, int initialCapacity,
+			int alignment, CompressedStoreFactory storeFactory) {
+		this(delegate, blocksize, initialCapacity, alignment, storeFactory, is_concurrent());
+	}
+
+	/**
+	 * If concurrent is true, the statespace is a ConcurrentCompressedHashSet,
+	 * which threads can access without acquiring the global lock.
+	 */
+	public MemoryEfficientAStarAlgorithm(StorageAwareDelegate<H, T> delegate, int blocksize, int initialCapacity,
+			int alignment, CompressedStoreFactory storeFactory, boolean concurrent) {
 		this.compressor = new StateCompressor<H, T>(delegate);
 		this.delegate = delegate;
-		this.statespace = new CompressedStoreHashSetImpl.IntCustomAlignment<State<H, T>>(
-				alignment, compressor, compressor, blocksize, compressor,
-				compressor, initialCapacity);
+		CompressedStore<State<H, T>> store = storeFactory.<State<H, T>>createStore(alignment, compressor,
+				compressor, blocksize);
+		if (concurrent) {
+			ConcurrentCompressedStoreHashSetImpl<State<H, T>> set;
+			if (is_longPointers()) {
+				set = new ConcurrentCompressedStoreHashSetImpl.Long<State<H, T>>(store, compressor, compressor,
+						initialCapacity, ConcurrentCompressedStoreHashSetImpl.SEGMENTS, get_probeFilter(),
+						get_layout());
+			} else {
+				set = new ConcurrentCompressedStoreHashSetImpl.IntCustomAlignment<State<H, T>>(store, compressor,
+						compressor, initialCapacity, ConcurrentCompressedStoreHashSetImpl.SEGMENTS,
+						get_probeFilter(), get_layout());
+			}
+			set.setIncrementalRehash(is_incremental());
+			set.setParallelRehash(is_parallelRehash());
+			set.setBloomFilter(get_bloomBits());
+			this.statespace = set;
+		} else {
+			CompressedStoreHashSetImpl<State<H, T>> set;
+			if (is_longPointers()) {
+				set = new CompressedStoreHashSetImpl.Long<State<H, T>>(store, compressor, compressor,
+						initialCapacity, get_probeFilter(), get_layout());
+			} else {
+				set = new CompressedStoreHashSetImpl.IntCustomAlignment<State<H, T>>(store, compressor,
+						compressor, initialCapacity, get_probeFilter(), get_layout());
+			}
+			set.setIncrementalRehash(is_incremental());
+			set.setParallelRehash(is_parallelRehash());
+			set.setBloomFilter(get_bloomBits());
+			// threads look up states concurrently under the read lock
+			set.setConcurrentLookups(true);
+			this.statespace = set;
+		}
 		this.store = statespace.getBackingStore();
+		this.lock = statespace instanceof ConcurrentCompressedHashSet ? null : new ReentrantReadWriteLock();
 		delegate.setStateSpace(statespace);
 	}
 
@@ -74,4 +378,24 @@ public class MemoryEfficientAStarAlgorithm<H extends Head, T extends Tail> {
 		return delegate;
 	}
 
+	/**
+	 * Returns the operation to look up states by their head, or null if the
+	 * delegate does not provide one.
+	 * 
+	 * @return
+	 */
+	public ProbeOperation<H, State<H, T>> getHeadProbeOperation() {
+		return compressor.getHeadProbeOperation();
+	}
+
+	/**
+	 * Returns the lock that guards the statespace, shared by all threads using
+	 * this algorithm, or null if the statespace is Thread-safe by itself.
+	 * 
+	 * @return
+	 */
+	public ReentrantReadWriteLock getLock() {
+		return lock;
+	}
+
 }
@@ -13,8 +13,8 @@ import nl.tue.astar.impl.State;
 import nl.tue.storage.CompressedHashSet;
 import nl.tue.storage.CompressedStore;
 import nl.tue.storage.FastByteArrayInputStream;
+import nl.tue.storage.ProbeOperation;
 import nl.tue.storage.StorageException;
-import nl.tue.storage.impl.CompressedStoreHashSetImpl.Result;
 import nl.tue.storage.impl.SkippableOutputStream;
 
 public class MemoryEfficientStorageHandler<H extends Head, T extends Tail> implements
@@ -25,7 +25,11 @@ public class MemoryEfficientStorageHandler<H extends Head, T extends Tail> imple
 	protected final CompressedHashSet<State<H, T>> statespace;
 	protected final StorageAwareDelegate<H, T> delegate;
 
-	protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// shared by all handlers of the algorithm, null if the statespace is
+	// Thread-safe by itself
+	protected final ReentrantReadWriteLock lock;
+	// looks up states by head, null if the delegate does not provide one
+	protected final ProbeOperation<H, State<H, T>> headProbe;
 
 	public MemoryEfficientStorageHandler(MemoryEfficientAStarAlgorithm<H, T> algorithm) {
 		// super(algorithm.getDelegate(), trace, maxStates);
@@ -33,36 +37,49 @@ public class MemoryEfficientStorageHandler<H extends Head, T extends Tail> imple
 		this.statespace = algorithm.getStatespace();
 		this.store = algorithm.getStore();
 		this.delegate = algorithm.getDelegate();
+		this.lock = algorithm.getLock();
+		this.headProbe = algorithm.getHeadProbeOperation();
 		// get the index where initialHead is stored
 		// initializeQueue(initialHead);
 
 	}
 
 	public void storeStateForRecord(State<H, T> state, Record newRec) throws AStarException {
-		final Result<State<H, T>> r;
+		final long l;
 		// synchronized (statespace) {
-		try {
+		if (lock != null) {
 			lock.writeLock().lock();
-			r = statespace.add(state);
+		}
+		try {
+			l = statespace.addOrGet(state);
 		} catch (StorageException e) {
 			throw new AStarException(e);
 		} finally {
-			lock.writeLock().unlock();
+			if (lock != null) {
+				lock.writeLock().unlock();
+			}
 		}
 
 		// }
-		newRec.setState(r.index);
+		newRec.setState(l >= 0 ? l : -(l + 1));
 	}
 
 	public long getIndexOf(H head) throws AStarException {
 		// synchronized (statespace) {
-		try {
+		if (lock != null) {
 			lock.readLock().lock();
+		}
+		try {
+			if (headProbe != null) {
+				return statespace.contains(head, headProbe);
+			}
 			return statespace.contains(new State<H, T>(head, null));
 		} catch (StorageException e) {
 			throw new AStarException(e);
 		} finally {
-			lock.readLock().unlock();
+			if (lock != null) {
+				lock.readLock().unlock();
+			}
 		}
 		// }
 
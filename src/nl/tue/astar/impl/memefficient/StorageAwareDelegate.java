@@ -22,6 +22,13 @@ public interface StorageAwareDelegate<H extends Head, T extends Tail> extends De
 
 	public HashOperation<State<H, T>> getHeadBasedHashOperation();
 
+	/**
+	 * If the returned operation also implements ProbeOperation<H, State<H,
+	 * T>>, states are looked up by their head directly, without constructing
+	 * a State for each lookup.
+	 * 
+	 * @return
+	 */
 	public EqualOperation<State<H, T>> getHeadBasedEqualOperation();
 
 	public void setStateSpace(CompressedHashSet<State<H, T>> statespace);
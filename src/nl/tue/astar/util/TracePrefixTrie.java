@@ -0,0 +1,157 @@
+package nl.tue.astar.util;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trie of linear traces, in which every node represents a prefix of one or
+ * more traces. Each trace is added with a value, which is kept in the node of
+ * the complete trace.
+ *
+ * The trie is used to group traces which share a prefix, such that they can
+ * be handled one after the other.
+ *
+ * @param <V>
+ */
+public class TracePrefixTrie<V> {
+
+	private static final class Node<V> {
+		private TIntObjectMap<Node<V>> children = null;
+		private List<V> values = null;
+	}
+
+	private final Node<V> root = new Node<V>();
+	private int nodeCount = 1;
+	private long eventCount = 0;
+	private int size = 0;
+
+	/**
+	 * Adds the value for the given trace.
+	 *
+	 * @param trace
+	 * @param value
+	 */
+	public void add(LinearTrace trace, V value) {
+		Node<V> node = root;
+		for (int i = 0; i < trace.getSize(); i++) {
+			if (node.children == null) {
+				node.children = new TIntObjectHashMap<Node<V>>(2);
+			}
+			Node<V> child = node.children.get(trace.get(i));
+			if (child == null) {
+				child = new Node<V>();
+				node.children.put(trace.get(i), child);
+				nodeCount++;
+			}
+			node = child;
+		}
+		if (node.values == null) {
+			node.values = new ArrayList<V>(1);
+		}
+		node.values.add(value);
+		eventCount += trace.getSize();
+		size++;
+	}
+
+	/**
+	 * Returns the values in groups, such that all traces of which the values
+	 * are in one group share a prefix of at least the given length. The values
+	 * in a group are ordered depth first, hence each trace shares the longest
+	 * possible prefix with the trace before it. Traces shorter than the given
+	 * length are only grouped with equal traces.
+	 *
+	 * @param minPrefixLength
+	 * @return
+	 */
+	public List<List<V>> getGroups(int minPrefixLength) {
+		List<List<V>> groups = new ArrayList<List<V>>();
+		collect(root, 0, minPrefixLength, null, groups);
+		return groups;
+	}
+
+	private void collect(Node<V> node, int depth, int minPrefixLength, List<V> group, List<List<V>> groups) {
+		if (group == null && (depth >= minPrefixLength || node.children == null)) {
+			// start a new group for this subtree
+			group = new ArrayList<V>();
+			groups.add(group);
+		}
+		if (node.values != null) {
+			if (group == null) {
+				groups.add(new ArrayList<V>(node.values));
+			} else {
+				group.addAll(node.values);
+			}
+		}
+		if (node.children != null) {
+			// visit the children in order of activity, for a deterministic
+			// grouping
+			int[] keys = node.children.keys();
+			Arrays.sort(keys);
+			for (int key : keys) {
+				collect(node.children.get(key), depth + 1, minPrefixLength, group, groups);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of traces in the trie
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of distinct prefixes of the traces in the trie,
+	 * including the empty prefix.
+	 *
+	 * @return
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the total number of events in all traces in the trie. The
+	 * fraction of events in shared prefixes is 1 - (getNodeCount() - 1) /
+	 * getEventCount().
+	 *
+	 * @return
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Returns the length of the longest prefix shared by at least two traces,
+	 * or -1 if the trie contains less than two traces.
+	 *
+	 * @return
+	 */
+	public int getLongestSharedPrefix() {
+		return longestShared(root, 0);
+	}
+
+	private int longestShared(Node<V> node, int depth) {
+		int count = node.values == null ? 0 : node.values.size();
+		int longest = -1;
+		if (node.children != null) {
+			TIntObjectIterator<Node<V>> it = node.children.iterator();
+			while (it.hasNext()) {
+				it.advance();
+				longest = Math.max(longest, longestShared(it.value(), depth + 1));
+				count++;
+			}
+		}
+		if (longest < 0 && count >= 2) {
+			longest = depth;
+		}
+		return longest;
+	}
+}
@@ -0,0 +1,217 @@
+package nl.tue.storage;
+
+import gnu.trove.map.TLongLongMap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import nl.tue.storage.impl.CompactingCompressedStoreImpl;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
+import nl.tue.storage.impl.CompressedStoreImpl;
+import nl.tue.storage.impl.ConcurrentCompressedStoreHashSetImpl;
+import nl.tue.storage.impl.DirectCompressedStoreImpl;
+import nl.tue.storage.impl.MappedCompressedStoreImpl;
+import nl.tue.storage.impl.SizeClassCompressedStoreImpl;
+
+/**
+ * Randomized check of removing objects from a CompressedHashSet and compacting
+ * its store. Random values are added and removed, while a HashMap keeps the
+ * expected index of each value in the set. Afterwards, the set is compared to
+ * the map, compacted, and compared again using the returned remapping. This
+ * is done for each set flavour, layout and probe filter, with the store on
+ * the heap, in direct memory, in a memory-mapped file, on the heap with
+ * compressed cold blocks and on the heap in size classes. For the mapped
+ * store, the old file should be deleted after compaction.
+ */
+public class CompactionTest {
+
+	// number of random operations per configuration
+	private static final int OPERATIONS = 200000;
+	// the values are drawn from this many distinct values
+	private static final int VALUES = OPERATIONS / 2;
+	// values added after compaction
+	private static final int EXTRA = 1000;
+	// blocksize in bytes
+	private static final int BLOCKSIZE = 4096;
+	// alignment of the store
+	private static final int ALIGNMENT = 8;
+	// initial capacity of the sets, small to force many rehashes
+	private static final int CAPACITY = 16;
+	// number of segments of the concurrent sets
+	private static final int SEGMENTS = 8;
+	// the stores that are tested
+	private static final String[] STORES = { "heap", "direct", "mapped", "compct", "sizecl" };
+	// number of resident blocks of the compacting store
+	private static final int RESIDENT = 4;
+	// number of operations between two compressions of its cold blocks
+	private static final int INTERVAL = 1000;
+
+	/**
+	 * Stores longs in 8 bytes.
+	 */
+	private static class LongCompressor implements Deflater<Long>, Inflater<Long> {
+
+		public void deflate(Long object, OutputStream stream) throws IOException {
+			new DataOutputStream(stream).writeLong(object);
+		}
+
+		public int getMaxByteCount() {
+			return 8;
+		}
+
+		public Long inflate(InputStream stream) throws IOException {
+			return new DataInputStream(stream).readLong();
+		}
+	}
+
+	public static void main(String[] args) throws StorageException {
+		int errors = 0;
+		System.out.println("Performing " + OPERATIONS + " random additions and removals per configuration.");
+		System.out.println("store ,flavour,layout       ,filter     ,size  ,before ,after  ,errors");
+		int seed = 0;
+		for (String kind : STORES) {
+			for (int flavour = 0; flavour < 4; flavour++) {
+				for (Layout layout : Layout.values()) {
+					for (ProbeFilter filter : ProbeFilter.values()) {
+						LongCompressor c = new LongCompressor();
+						CompressedStore<Long> store = createStore(kind, c);
+						CompressedHashSet<Long> set = createSet(flavour, store, filter, layout);
+						errors += doTest(set, store, new Random(seed++), kind, flavour, layout, filter);
+					}
+				}
+			}
+		}
+		System.out.println("===============================");
+		System.out.println(errors + " errors were found");
+	}
+
+	private static CompressedStore<Long> createStore(String kind, LongCompressor c) {
+		if (kind.equals("direct")) {
+			return new DirectCompressedStoreImpl<Long>(ALIGNMENT, c, c, BLOCKSIZE);
+		} else if (kind.equals("mapped")) {
+			return new MappedCompressedStoreImpl<Long>(ALIGNMENT, c, c, BLOCKSIZE);
+		} else if (kind.equals("sizecl")) {
+			return new SizeClassCompressedStoreImpl<Long>(ALIGNMENT, c, c, BLOCKSIZE);
+		} else if (kind.equals("compct")) {
+			// cold blocks are compressed explicitly by doTest
+			return new CompactingCompressedStoreImpl<Long>(ALIGNMENT, c, c, BLOCKSIZE, RESIDENT, 0);
+		}
+		return new CompressedStoreImpl<Long>(ALIGNMENT, c, c, BLOCKSIZE);
+	}
+
+	private static CompressedHashSet<Long> createSet(int flavour, CompressedStore<Long> store,
+			ProbeFilter filter, Layout layout) {
+		EqualOperation<Long> eq = new EqualOperation.Default<Long>();
+		HashOperation<Long> hs = new HashOperation.Default<Long>();
+		switch (flavour) {
+			case 0 :
+				return new CompressedStoreHashSetImpl.IntCustomAlignment<Long>(store, eq, hs, CAPACITY, filter,
+						layout);
+			case 1 :
+				return new CompressedStoreHashSetImpl.Long<Long>(store, eq, hs, CAPACITY, filter, layout);
+			case 2 :
+				return new ConcurrentCompressedStoreHashSetImpl.IntCustomAlignment<Long>(store, eq, hs, CAPACITY,
+						SEGMENTS, filter, layout);
+			default :
+				return new ConcurrentCompressedStoreHashSetImpl.Long<Long>(store, eq, hs, CAPACITY, SEGMENTS,
+						filter, layout);
+		}
+	}
+
+	private static int doTest(CompressedHashSet<Long> set, CompressedStore<Long> store, Random generator,
+			String kind, int flavour, Layout layout, ProbeFilter filter) throws StorageException {
+		int errors = 0;
+		// the expected index of each value in the set
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		for (int i = 0; i < OPERATIONS; i++) {
+			if (i % INTERVAL == 0 && store instanceof CompactingCompressedStoreImpl) {
+				((CompactingCompressedStoreImpl<Long>) store).compact();
+			}
+			long value = value(generator.nextInt(VALUES));
+			if (generator.nextInt(3) < 2) {
+				long index = set.addOrGet(value);
+				Long e = expected.get(value);
+				if (e == null) {
+					if (index < 0) {
+						errors++;
+					}
+					expected.put(value, index);
+				} else if (index >= 0 || -(index + 1) != e) {
+					errors++;
+				}
+			} else {
+				long index = set.remove(value);
+				Long e = expected.remove(value);
+				if (e == null ? index != -1 : index != e) {
+					errors++;
+				}
+			}
+		}
+		errors += verify(set, expected, null);
+		if (store instanceof CompactingCompressedStoreImpl) {
+			((CompactingCompressedStoreImpl<Long>) store).compact();
+		}
+
+		long before = store.getSize();
+		File file = store instanceof MappedCompressedStoreImpl ? ((MappedCompressedStoreImpl<Long>) store)
+				.getFile() : null;
+		TLongLongMap remap = set.compact();
+		long after = store.getSize();
+		errors += verify(set, expected, remap);
+		if (file != null && (file.exists() || file.equals(((MappedCompressedStoreImpl<Long>) store).getFile()))) {
+			errors++;
+		}
+
+		// the set should still accept new values
+		for (int i = 0; i < EXTRA; i++) {
+			long value = value(VALUES + i);
+			if (set.addOrGet(value) < 0 || set.addOrGet(value) >= 0) {
+				errors++;
+			}
+		}
+		System.out.println(String.format("%-6s,%7d,%-13s,%-11s,%6d,%7d,%7d,%d", kind,
+				flavour, layout, filter, expected.size(), before, after, errors));
+		return errors;
+	}
+
+	/**
+	 * Checks that the set contains exactly the expected values. If remap is
+	 * not null, the index of each value should be the remapped expected
+	 * index.
+	 */
+	private static int verify(CompressedHashSet<Long> set, Map<Long, Long> expected, TLongLongMap remap)
+			throws StorageException {
+		int errors = 0;
+		if (set.size() != expected.size()) {
+			errors++;
+		}
+		for (Map.Entry<Long, Long> e : expected.entrySet()) {
+			long index = remap == null ? e.getValue() : remap.get(e.getValue());
+			if (index < 0 || set.contains(e.getKey()) != index || !set.getObject(index).equals(e.getKey())) {
+				errors++;
+			}
+		}
+		for (int i = 0; i < EXTRA; i++) {
+			if (set.contains(value(VALUES + i)) != -1) {
+				errors++;
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * spreads the i-th value over the range of longs
+	 */
+	private static long value(int i) {
+		return i * 0x9E3779B97F4A7C15L;
+	}
+}
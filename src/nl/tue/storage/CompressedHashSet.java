@@ -1,5 +1,7 @@
 package nl.tue.storage;
 
+import gnu.trove.map.TLongLongMap;
+
 import nl.tue.storage.impl.CompressedStoreHashSetImpl.Result;
 
 /**
@@ -31,6 +33,34 @@ public interface CompressedHashSet<K> {
 	 */
 	public Result<K> add(K val) throws StorageException;
 
+	/**
+	 * Adds the given object if it is not present, like add(val), without
+	 * allocating a Result. If the object did not exist before the call, its
+	 * (non-negative) index is returned. Otherwise -(index + 1) is returned,
+	 * where index is the index of the existing object.
+	 * 
+	 * @param val
+	 * @return
+	 * @throws StorageException
+	 */
+	public long addOrGet(K val) throws StorageException;
+
+	/**
+	 * Adds all given objects. For each object vals[i], the index in the
+	 * backing store is stored in outIndices[i] and isNew[i] is set to true if
+	 * the object did not exist before the call. The new objects are added to
+	 * the backing store in one batch.
+	 * 
+	 * @param vals
+	 * @param outIndices
+	 *            an array of at least the length of vals
+	 * @param isNew
+	 *            an array of at least the length of vals
+	 * @return the number of new objects
+	 * @throws StorageException
+	 */
+	public int add(K[] vals, long[] outIndices, boolean[] isNew) throws StorageException;
+
 	/**
 	 * Returns the index of the given object in the backing store. If the object
 	 * existed before the call to add, a non-negative index is returned,
@@ -42,6 +72,19 @@ public interface CompressedHashSet<K> {
 	 */
 	public long contains(K val) throws StorageException;
 
+	/**
+	 * Returns the index of the object in the backing store that matches the
+	 * given probe. If no object matches, -1 is returned.
+	 * 
+	 * @param probe
+	 * @param op
+	 *            determines the hash code of the probe and whether a stored
+	 *            object matches it
+	 * @return
+	 * @throws StorageException
+	 */
+	public <P> long contains(P probe, ProbeOperation<P, K> op) throws StorageException;
+
 	/**
 	 * returns the memory use of the backing store plus the size of the
 	 * backingSet.
@@ -67,11 +110,34 @@ public interface CompressedHashSet<K> {
 	public CompressedStore<K> getBackingStore();
 
 	/**
-	 * return the number of objects stored in this set
+	 * return the number of objects stored in this set, which may exceed
+	 * Integer.MAX_VALUE for sets that consist of multiple tables.
 	 * 
 	 * @return
 	 */
-	public int size();
+	public long size();
+
+	/**
+	 * removes val from the set. The object remains in the backing store, until
+	 * the set is compacted.
+	 * 
+	 * @param val
+	 * @return the index of the removed object in the backing store, or -1 if
+	 *         val was not in the set.
+	 * @throws StorageException
+	 */
+	public long remove(K val) throws StorageException;
+
+	/**
+	 * rewrites the backing store, such that it only contains the objects in
+	 * this set. This reclaims the memory of removed objects, but it moves the
+	 * remaining objects. The returned map gives the new index of each object
+	 * for its old index, and -1 for any other index.
+	 * 
+	 * @return
+	 * @throws StorageException
+	 */
+	public TLongLongMap compact() throws StorageException;
 
 	/**
 	 * clears the storage space and removes all elements in the backing set.
@@ -30,6 +30,19 @@ public interface CompressedStore<T> {
 	 */
 	public long addToStorage(T object) throws StorageException;
 
+	/**
+	 * Adds deflated versions of all provided objects to the storage. The index
+	 * of objects[i] is stored in outIndices[i]. Implementations may reserve
+	 * space for all objects at once, hence this is cheaper than adding the
+	 * objects one by one.
+	 * 
+	 * @param objects
+	 * @param outIndices
+	 *            an array of at least the length of objects
+	 * @throws StorageException
+	 */
+	public void addAll(T[] objects, long[] outIndices) throws StorageException;
+
 	/**
 	 * Retrieves the byte representation of an object at a the given index
 	 * 
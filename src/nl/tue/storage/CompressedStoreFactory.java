@@ -0,0 +1,182 @@
+package nl.tue.storage;
+
+import java.io.File;
+
+import nl.tue.storage.impl.CompactingCompressedStoreImpl;
+import nl.tue.storage.impl.CompressedStoreImpl;
+import nl.tue.storage.impl.CompressedStoreImpl.Allocation;
+import nl.tue.storage.impl.DirectCompressedStoreImpl;
+import nl.tue.storage.impl.MappedCompressedStoreImpl;
+import nl.tue.storage.impl.SizeClassCompressedStoreImpl;
+
+/**
+ * Factory for instantiating CompressedStores. A factory can be provided to
+ * classes that need to construct their own store, such as the
+ * MemoryEfficientAStarAlgorithm, to choose the implementation of the store.
+ */
+public interface CompressedStoreFactory {
+
+	/**
+	 * Factory for stores that keep their blocks on the Java heap.
+	 */
+	public static class Heap implements CompressedStoreFactory {
+
+		private final Allocation allocation;
+
+		private final boolean spanning;
+
+		public Heap() {
+			this(Allocation.SYNCHRONIZED);
+		}
+
+		/**
+		 * Stores are created with the given allocation mode
+		 * 
+		 * @param allocation
+		 */
+		public Heap(Allocation allocation) {
+			this(allocation, false);
+		}
+
+		/**
+		 * Stores are created with the given allocation mode, in which objects
+		 * may span multiple blocks if spanning is true.
+		 * 
+		 * @param allocation
+		 * @param spanning
+		 */
+		public Heap(Allocation allocation, boolean spanning) {
+			this.allocation = allocation;
+			this.spanning = spanning;
+		}
+
+		public <T> CompressedStore<T> createStore(int alignment, Deflater<? super T> deflater,
+				Inflater<? extends T> inflater, int blockSize) {
+			return new CompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, allocation, spanning);
+		}
+
+	}
+
+	/**
+	 * Factory for stores that keep their blocks in direct buffers, outside of
+	 * the Java heap.
+	 */
+	public static class Direct implements CompressedStoreFactory {
+
+		public <T> CompressedStore<T> createStore(int alignment, Deflater<? super T> deflater,
+				Inflater<? extends T> inflater, int blockSize) {
+			return new DirectCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize);
+		}
+
+	}
+
+	/**
+	 * Factory for stores that keep their blocks in a memory-mapped temporary
+	 * file, allowing the store to grow beyond the available memory.
+	 */
+	public static class Mapped implements CompressedStoreFactory {
+
+		private final File directory;
+
+		/**
+		 * Stores are created in the default temporary-file directory
+		 */
+		public Mapped() {
+			this(null);
+		}
+
+		/**
+		 * Stores are created in the given directory, preferably on a fast local
+		 * disk.
+		 * 
+		 * @param directory
+		 */
+		public Mapped(File directory) {
+			this.directory = directory;
+		}
+
+		public <T> CompressedStore<T> createStore(int alignment, Deflater<? super T> deflater,
+				Inflater<? extends T> inflater, int blockSize) {
+			return new MappedCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, directory);
+		}
+
+	}
+
+	/**
+	 * Factory for stores that keep their blocks on the Java heap and compress
+	 * the least recently used blocks in the background.
+	 */
+	public static class Compacting implements CompressedStoreFactory {
+
+		private final int residentBlocks;
+
+		public Compacting() {
+			this(CompactingCompressedStoreImpl.RESIDENTBLOCKS);
+		}
+
+		/**
+		 * Stores are created that keep at most the given number of blocks
+		 * uncompressed after each compaction
+		 * 
+		 * @param residentBlocks
+		 */
+		public Compacting(int residentBlocks) {
+			this.residentBlocks = residentBlocks;
+		}
+
+		public <T> CompressedStore<T> createStore(int alignment, Deflater<? super T> deflater,
+				Inflater<? extends T> inflater, int blockSize) {
+			return new CompactingCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, residentBlocks,
+					CompactingCompressedStoreImpl.INTERVAL);
+		}
+
+	}
+
+	/**
+	 * Factory for stores that keep their objects on the Java heap, in
+	 * separate pools of blocks per size class.
+	 */
+	public static class SizeClass implements CompressedStoreFactory {
+
+		private final int[] sizeClasses;
+
+		private final Allocation allocation;
+
+		public SizeClass() {
+			this(SizeClassCompressedStoreImpl.SIZECLASSES, Allocation.SYNCHRONIZED);
+		}
+
+		/**
+		 * Stores are created with the given slot sizes and allocation mode
+		 * 
+		 * @param sizeClasses
+		 * @param allocation
+		 */
+		public SizeClass(int[] sizeClasses, Allocation allocation) {
+			this.sizeClasses = sizeClasses;
+			this.allocation = allocation;
+		}
+
+		public <T> CompressedStore<T> createStore(int alignment, Deflater<? super T> deflater,
+				Inflater<? extends T> inflater, int blockSize) {
+			return new SizeClassCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, sizeClasses,
+					allocation);
+		}
+
+	}
+
+	/**
+	 * Instantiates a new, empty store.
+	 *
+	 * @param alignment
+	 *            the byte alignment of the objects in the store
+	 * @param deflater
+	 * @param inflater
+	 *            may be null
+	 * @param blockSize
+	 * @return
+	 */
+	public <T> CompressedStore<T> createStore(int alignment, Deflater<? super T> deflater,
+			Inflater<? extends T> inflater, int blockSize);
+
+}
@@ -0,0 +1,15 @@
+package nl.tue.storage;
+
+/**
+ * A CompressedHashSet that is Thread-safe, i.e. the add and contains methods
+ * can be called concurrently by multiple threads without holding a lock on
+ * the set. The backing store of the set should allow concurrent additions.
+ *
+ * The result of contains is exact: if an object was added by a call to add
+ * that returned before the call to contains, its index is returned.
+ *
+ * @param <K>
+ */
+public interface ConcurrentCompressedHashSet<K> extends CompressedHashSet<K> {
+
+}
@@ -0,0 +1,141 @@
+package nl.tue.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import nl.tue.storage.impl.CompressedStoreImpl;
+import nl.tue.storage.impl.CompressedStoreImpl.Allocation;
+
+/**
+ * Multi-threaded benchmark for adding objects to a CompressedStoreImpl. Each
+ * thread stores its own set of random byte arrays in a shared store, after
+ * which all objects are read back and checked. For each allocation mode, the
+ * throughput is reported for an increasing number of writing threads.
+ */
+public class ConcurrentStorageTest {
+
+	// maximum length of the stored arrays
+	private static final int LENGTH = 64;
+	// number of objects stored by each thread
+	private static final int OBJECTS = 500000;
+	// blocksize in bytes
+	private static final int BLOCKSIZE = 512 * 1024;
+	// alignment of the store
+	private static final int ALIGNMENT = 8;
+	// number of threads
+	private static final int[] THREADS = new int[] { 1, 2, 4, 8, 16 };
+	// number of runs per configuration, the fastest is reported
+	private static final int RUNS = 3;
+
+	private static Random generator = new Random(0);
+
+	/**
+	 * Stores byte arrays with a one-byte length prefix.
+	 */
+	private static class ByteArrayCompressor implements Deflater<byte[]>, Inflater<byte[]> {
+
+		public void deflate(byte[] object, OutputStream stream) throws IOException {
+			stream.write(object.length);
+			stream.write(object);
+		}
+
+		public int getMaxByteCount() {
+			return LENGTH + 1;
+		}
+
+		public byte[] inflate(InputStream stream) throws IOException {
+			byte[] object = new byte[stream.read()];
+			stream.read(object, 0, object.length);
+			return object;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = THREADS[THREADS.length - 1];
+		final byte[][][] objects = new byte[maxThreads][OBJECTS][];
+		for (int t = 0; t < maxThreads; t++) {
+			for (int i = 0; i < OBJECTS; i++) {
+				objects[t][i] = new byte[1 + generator.nextInt(LENGTH)];
+				generator.nextBytes(objects[t][i]);
+			}
+		}
+
+		int errors = 0;
+		System.out.println("Storing " + OBJECTS + " random arrays of at most " + LENGTH + " bytes per thread.");
+		System.out.println("mode        ,threads,seconds,Mobjects/s,speedup,wasted");
+		for (Allocation allocation : Allocation.values()) {
+			double base = 0;
+			for (int threads : THREADS) {
+				double best = Double.MAX_VALUE;
+				long wasted = 0;
+				for (int r = 0; r < RUNS; r++) {
+					CompressedStoreImpl<byte[]> store = new CompressedStoreImpl<byte[]>(ALIGNMENT,
+							new ByteArrayCompressor(), new ByteArrayCompressor(), BLOCKSIZE, allocation);
+					long[][] index = new long[threads][OBJECTS];
+					double time = doTest(store, objects, index, threads);
+					errors += verify(store, objects, index, threads);
+					best = Math.min(best, time);
+					wasted = store.getWastedMemory();
+				}
+				double throughput = threads * OBJECTS / best / 1000000.0;
+				if (threads == 1) {
+					base = throughput;
+				}
+				System.out.println(String.format("%-12s,%7d,%7.3f,%10.2f,%7.2f,%d", allocation, threads, best,
+						throughput, throughput / base, wasted));
+			}
+		}
+		System.out.println("===============================");
+		System.out.println(errors + " errors were found");
+		System.exit(0);
+	}
+
+	private static double doTest(final CompressedStore<byte[]> store, final byte[][][] objects,
+			final long[][] index, int threads) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int j = t;
+			new Thread(new Runnable() {
+
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < OBJECTS; i++) {
+							index[j][i] = store.addToStorage(objects[j][i]);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+
+			}).start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return (System.nanoTime() - begin) / 1E9;
+	}
+
+	private static int verify(CompressedStore<byte[]> store, byte[][][] objects, long[][] index, int threads)
+			throws StorageException {
+		int errors = 0;
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < OBJECTS; i++) {
+				if (!Arrays.equals(store.getObject(index[t][i]), objects[t][i])) {
+					errors++;
+				}
+			}
+		}
+		if (errors > 0) {
+			System.err.println(errors + " objects could not be read back correctly.");
+		}
+		return errors;
+	}
+}
@@ -0,0 +1,100 @@
+package nl.tue.storage;
+
+/**
+ * FastByteArrayInputStream implementation that reads from a sequence of
+ * equally sized blocks, i.e. the stream continues at the start of the next
+ * block when the end of a block is reached. Used to read objects that span
+ * multiple blocks of a store.
+ * 
+ * As with the FastByteArrayInputStream, there is no check for the end of
+ * stream.
+ */
+public class FastBlockArrayInputStream extends FastByteArrayInputStream {
+
+	/**
+	 * the blocks
+	 */
+	protected final byte[][] blocks;
+
+	/**
+	 * the size of each block
+	 */
+	protected final int blockSize;
+
+	/**
+	 * the index of the current block
+	 */
+	protected int block;
+
+	/**
+	 * the current block, pos is the index in this block
+	 */
+	protected byte[] current;
+
+	/**
+	 * 
+	 * @param blocks
+	 * @param blockSize
+	 * @param block
+	 *            the block to start reading in
+	 * @param pos
+	 *            the index in that block of the first byte to read
+	 * @param count
+	 *            the number of bytes that can be read
+	 */
+	public FastBlockArrayInputStream(byte[][] blocks, int blockSize, int block, int pos, int count) {
+		super(blocks[block], pos, count);
+		this.blocks = blocks;
+		this.blockSize = blockSize;
+		this.block = block;
+		this.current = blocks[block];
+	}
+
+	/**
+	 * moves to the block containing pos. Both pos and count are kept relative
+	 * to the current block, so available() remains correct.
+	 */
+	private void nextBlock() {
+		while (pos >= blockSize) {
+			pos -= blockSize;
+			count -= blockSize;
+			block++;
+		}
+		current = blocks[block];
+	}
+
+	public int read() {
+		assert pos < count;
+		if (pos >= blockSize) {
+			nextBlock();
+		}
+		return current[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		assert (pos + len <= count);
+		int todo = len;
+		while (todo > 0) {
+			if (pos >= blockSize) {
+				nextBlock();
+			}
+			int l = Math.min(todo, blockSize - pos);
+			System.arraycopy(current, pos, b, off, l);
+			pos += l;
+			off += l;
+			todo -= l;
+		}
+		return len;
+	}
+
+	/**
+	 * when reading from this stream, you need a lock on this object, which is
+	 * the block in which the stream started.
+	 * 
+	 * @return
+	 */
+	public Object getLock() {
+		return buf;
+	}
+
+}
@@ -33,12 +33,12 @@ public class FastByteArrayInputStream extends InputStream {
 		return count - pos;
 	}
 
-	public final int read() {
+	public int read() {
 		assert pos < count;
 		return buf[pos++] & 0xff;
 	}
 
-	public final int read(byte[] b, int off, int len) {
+	public int read(byte[] b, int off, int len) {
 		assert (pos + len <= count);
 		System.arraycopy(buf, pos, b, off, len);
 		pos += len;
@@ -0,0 +1,54 @@
+package nl.tue.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FastByteArrayInputStream implementation that reads from a ByteBuffer instead
+ * of a byte array. The buffer is read through a duplicate, hence the position
+ * of the buffer itself is never changed and multiple streams can read from the
+ * same buffer in parallel.
+ *
+ * As with the FastByteArrayInputStream, there is no check for the end of
+ * stream.
+ */
+public class FastByteBufferInputStream extends FastByteArrayInputStream {
+
+	/**
+	 * Our byte buffer
+	 */
+	protected final ByteBuffer buffer;
+
+	/**
+	 * The duplicate of the buffer this stream reads from
+	 */
+	private final ByteBuffer view;
+
+	public FastByteBufferInputStream(ByteBuffer buffer, int pos, int count) {
+		super(null, pos, count);
+		this.buffer = buffer;
+		this.view = buffer.duplicate();
+	}
+
+	public int read() {
+		assert pos < count;
+		return view.get(pos++) & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		assert (pos + len <= count);
+		view.position(pos);
+		view.get(b, off, len);
+		pos += len;
+		return len;
+	}
+
+	/**
+	 * when reading from this stream, you need a lock on this object.
+	 *
+	 * @return
+	 */
+	public Object getLock() {
+		return buffer;
+	}
+
+}
@@ -0,0 +1,94 @@
+package nl.tue.storage;
+
+import java.util.List;
+import java.util.Random;
+
+import nl.tue.storage.compressor.ShortListCompressor;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
+import nl.tue.storage.impl.CompressedStoreImpl;
+
+/**
+ * Benchmark comparing the table layouts of CompressedStoreHashSetImpl on the
+ * workload of StorageTest: random lists of shorts, most of which are 0, of
+ * which about half is a duplicate of an earlier list. For each layout and
+ * probe filter, the time to add all lists, to look them up again and to look
+ * up lists that are not in the set is reported.
+ */
+public class HashSetLayoutTest {
+
+	// the length of the lists
+	private static final int LENGTH = 200;
+	// the number of lists to add
+	private static final int VECTORS = 250000;
+	// the number of lists to look up that are not in the set
+	private static final int MISSES = 100000;
+	// the percentage of lists that is a duplicate of an earlier list
+	private static final int DUPLICATE = 50;
+	// blocksize in bytes
+	private static final int BLOCKSIZE = 2 * 1024 * 1024;
+	// number of runs per configuration, the fastest is reported
+	private static final int RUNS = 3;
+
+	private static Random generator = new Random(0);
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void main(String[] args) throws StorageException {
+		final List<Short>[] vectors = new List[VECTORS];
+		for (int i = 0; i < VECTORS; i++) {
+			if (i > 0 && generator.nextInt(100) < DUPLICATE) {
+				vectors[i] = vectors[generator.nextInt(i)];
+			} else {
+				vectors[i] = StorageTest.randomShortArray(LENGTH);
+			}
+		}
+		final List<Short>[] misses = new List[MISSES];
+		for (int i = 0; i < MISSES; i++) {
+			misses[i] = StorageTest.randomShortArray(LENGTH);
+		}
+
+		int errors = 0;
+		System.out.println("Adding " + VECTORS + " lists of " + LENGTH + " shorts, " + DUPLICATE + "% duplicates.");
+		System.out.println("layout       ,filter     ,add (s),hit (s),miss (s),avoided equals");
+		for (Layout layout : Layout.values()) {
+			for (ProbeFilter filter : ProbeFilter.values()) {
+				double add = Double.MAX_VALUE, hit = Double.MAX_VALUE, miss = Double.MAX_VALUE;
+				long avoided = 0;
+				for (int r = 0; r < RUNS; r++) {
+					ShortListCompressor c = new ShortListCompressor(LENGTH);
+					CompressedStoreHashSetImpl<List<Short>> set = new CompressedStoreHashSetImpl.IntCustomAlignment<List<Short>>(
+							new CompressedStoreImpl<List<Short>>(8, c, c, BLOCKSIZE), c, c, 10000, filter, layout);
+					long[] index = new long[VECTORS];
+
+					long start = System.nanoTime();
+					for (int i = 0; i < VECTORS; i++) {
+						index[i] = set.add(vectors[i]).index;
+					}
+					add = Math.min(add, (System.nanoTime() - start) / 1E9);
+
+					start = System.nanoTime();
+					for (int i = 0; i < VECTORS; i++) {
+						if (set.contains(vectors[i]) != index[i]) {
+							errors++;
+						}
+					}
+					hit = Math.min(hit, (System.nanoTime() - start) / 1E9);
+
+					start = System.nanoTime();
+					for (int i = 0; i < MISSES; i++) {
+						if (set.contains(misses[i]) != -1) {
+							errors++;
+						}
+					}
+					miss = Math.min(miss, (System.nanoTime() - start) / 1E9);
+					avoided = set.getAvoidedEqualityChecks();
+				}
+				System.out.println(String.format("%-13s,%-11s,%7.3f,%7.3f,%8.3f,%d", layout, filter, add, hit, miss,
+						avoided));
+			}
+		}
+		System.out.println("===============================");
+		System.out.println(errors + " errors were found");
+	}
+}
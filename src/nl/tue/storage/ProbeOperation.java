@@ -0,0 +1,39 @@
+package nl.tue.storage;
+
+import java.io.IOException;
+
+/**
+ * Operation to look up an object in a CompressedHashSet by a probe of another
+ * type, for example a part of the object on which its hash code and equality
+ * are defined. This avoids constructing an object only to look it up.
+ *
+ * The hash code of a probe should equal the hash code (according to the
+ * HashOperation of the set) of the objects it matches.
+ *
+ * @param <P>
+ *            the type of the probe
+ * @param <K>
+ *            the type of the objects in the set
+ */
+public interface ProbeOperation<P, K> {
+
+	/**
+	 * Returns the hash code of the probe.
+	 *
+	 * @param probe
+	 * @return
+	 */
+	public int getProbeHashCode(P probe);
+
+	/**
+	 * Returns true if the object at index l in the store matches the probe.
+	 *
+	 * @param probe
+	 * @param store
+	 * @param l
+	 * @return
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	public boolean matches(P probe, CompressedStore<K> store, long l) throws StorageException, IOException;
+}
@@ -205,7 +205,7 @@ public abstract class AbstractFixedLengthListCompressor<K extends Number>
 			InputStream stream = store.getStreamForObject(l);
 			byte[] mask = new byte[BitMask.getNumBytes(length)];
 			stream.read(mask);
-			return mask.hashCode();
+			return Arrays.hashCode(mask);
 		} catch (IOException e) {
 			throw new StorageException(e);
 		}
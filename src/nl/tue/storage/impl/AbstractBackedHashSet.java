@@ -2,33 +2,241 @@ package nl.tue.storage.impl;
 
 import gnu.trove.impl.HashFunctions;
 import gnu.trove.impl.hash.THash;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import nl.tue.storage.CompressedStore;
 import nl.tue.storage.EqualOperation;
 import nl.tue.storage.HashOperation;
+import nl.tue.storage.ProbeOperation;
 import nl.tue.storage.StorageException;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
 
 abstract class AbstractBackedHashSet<K> extends THash {
 
 	protected boolean consumeFreeSlot;
 
 	public static final long EXISTFLAG = Integer.MAX_VALUE + 1l;
+
+	/**
+	 * the pointer returned by get for a slot from which an object was
+	 * removed. Such a slot does not end a probe sequence, but it is reused by
+	 * the next object added on that sequence.
+	 */
+	public static final long REMOVED = java.lang.Long.MIN_VALUE;
 	private final CompressedStore<K> store;
 	private final EqualOperation<K> eq;
 	private final HashOperation<K> hs;
 
+	/**
+	 * looks up objects by the objects themselves, using eq.
+	 */
+	private final ProbeOperation<K, K> equalProbe;
+
 	protected final int initialCapacity;
 
+	/**
+	 * the (non-negative) hash code of the object in each slot, or null if hash
+	 * codes are not cached.
+	 */
+	private int[] hashArray;
+
+	/**
+	 * the fingerprint of the hash code of the object in each slot, or null if
+	 * fingerprints are not kept.
+	 */
+	private short[] fingerprintArray;
+
+	/**
+	 * the number of times a stored object was not compared to a value, as the
+	 * hash codes or fingerprints did not match.
+	 */
+	private long avoidedEquals;
+
+	/**
+	 * the Bloom filter on the hash codes of the objects in the table, or null
+	 * if there is none.
+	 */
+	private BlockedBloomFilter bloom;
+
+	/**
+	 * the Bloom filter of the old table during an incremental resize, or
+	 * null.
+	 */
+	private BlockedBloomFilter oldBloom;
+
+	/**
+	 * the number of bits of the Bloom filter per object the table can hold
+	 * before it grows.
+	 */
+	private int bloomBits;
+
+	/**
+	 * the number of lookups answered by the Bloom filter, and the number of
+	 * lookups that passed the Bloom filter without finding an object.
+	 */
+	private long bloomNegatives, bloomFalsePositives;
+
+	/**
+	 * the indices of the counters in sharedCounts.
+	 */
+	private static final int AVOIDEDEQUALS = 0, BLOOMNEGATIVES = 1, BLOOMFALSEPOSITIVES = 2;
+
+	/**
+	 * the counters updated by lookups, if lookups may run concurrently, or
+	 * null if the table is used by one thread at a time. If not null, the
+	 * avoided equality checks and Bloom filter outcomes are counted here
+	 * instead of in the fields above.
+	 */
+	private AtomicLongArray sharedCounts;
+
+	/**
+	 * the largest capacity of a table, i.e. the largest prime for which an
+	 * array can be allocated.
+	 */
+	public static final int MAXCAPACITY = 2147483629;
+
+	/**
+	 * the largest capacity of a table with a linear layout.
+	 */
+	public static final int MAXLINEARCAPACITY = 1 << 30;
+
+	/**
+	 * the number of slots of the old table that are migrated by each addition
+	 * during an incremental resize.
+	 */
+	public static final int MIGRATESTEP = 16;
+
+	/**
+	 * if true, the table is resized incrementally.
+	 */
+	private boolean incremental = false;
+
+	/**
+	 * the smallest table that is rehashed in parallel.
+	 */
+	public static final int PARALLELTHRESHOLD = 1 << 16;
+
+	/**
+	 * the number of tasks per thread of the pool in each phase of a parallel
+	 * rehash.
+	 */
+	private static final int TASKSPERTHREAD = 4;
+
+	/**
+	 * the pool used for parallel rehashing by all tables.
+	 */
+	private static ForkJoinPool pool;
+
+	/**
+	 * if true, large tables are rehashed in parallel.
+	 */
+	private boolean parallel = false;
+
+	/**
+	 * the slots of the old table below this index have not been migrated yet.
+	 */
+	private int migrateIndex;
+
+	/**
+	 * the cached hash codes of the old table, or null.
+	 */
+	private int[] oldHashArray;
+
+	/**
+	 * if true, the capacity is a power of two and slots are probed linearly,
+	 * otherwise the capacity is prime and slots are probed by double hashing.
+	 */
+	private boolean linear = false;
+
 	public AbstractBackedHashSet(CompressedStore<K> store,
 			EqualOperation<K> eq, HashOperation<K> hs, int initialCapacity) {
+		this(store, eq, hs, initialCapacity, ProbeFilter.NONE);
+	}
+
+	/**
+	 * The filter determines what is kept per slot to avoid comparing values
+	 * to stored objects that cannot be equal. With HASHCODE, rehashing also
+	 * does not need to access the backing store.
+	 * 
+	 * @param store
+	 * @param eq
+	 * @param hs
+	 * @param initialCapacity
+	 * @param filter
+	 */
+	public AbstractBackedHashSet(CompressedStore<K> store,
+			EqualOperation<K> eq, HashOperation<K> hs, int initialCapacity,
+			ProbeFilter filter) {
+		this(store, eq, hs, initialCapacity, filter, Layout.DOUBLEHASHING);
+	}
+
+	/**
+	 * The layout determines the capacity of the table and the sequence of
+	 * slots that is probed for an object.
+	 * 
+	 * @param store
+	 * @param eq
+	 * @param hs
+	 * @param initialCapacity
+	 * @param filter
+	 * @param layout
+	 */
+	public AbstractBackedHashSet(CompressedStore<K> store,
+			EqualOperation<K> eq, HashOperation<K> hs, int initialCapacity,
+			ProbeFilter filter, Layout layout) {
 		super(initialCapacity);
 		this.store = store;
 		this.eq = eq;
 		this.hs = hs;
+		this.equalProbe = new ProbeOperation<K, K>() {
+			public int getProbeHashCode(K probe) {
+				return AbstractBackedHashSet.this.hs.getHashCode(probe);
+			}
+
+			public boolean matches(K probe, CompressedStore<K> store, long l) throws StorageException, IOException {
+				return AbstractBackedHashSet.this.eq.equals(probe, store, l);
+			}
+		};
 		this.initialCapacity = initialCapacity;
+		// setUp is called by the super constructor, before the fields are set.
+		if (layout == Layout.LINEAR) {
+			this.linear = true;
+			setUp(HashFunctions.fastCeil(initialCapacity / _loadFactor));
+		}
+		if (filter == ProbeFilter.HASHCODE) {
+			this.hashArray = new int[length()];
+		} else if (filter == ProbeFilter.FINGERPRINT) {
+			this.fingerprintArray = new short[length()];
+		}
+	}
 
+	protected int setUp(int initialCapacity) {
+		int capacity = super.setUp(initialCapacity);
+		if (linear) {
+			// round up, such that the table holds the requested number of
+			// objects
+			capacity = capacity > MAXLINEARCAPACITY ? MAXLINEARCAPACITY : Integer.highestOneBit(capacity - 1) << 1;
+			computeMaxSize(capacity);
+		}
+		if (hashArray != null) {
+			hashArray = new int[capacity];
+		}
+		if (fingerprintArray != null) {
+			fingerprintArray = new short[capacity];
+		}
+		if (bloom != null) {
+			bloom = createBloomFilter(capacity);
+		}
+		return capacity;
 	}
 
 	private int hashCode(long index) throws StorageException {
@@ -60,35 +268,266 @@ abstract class AbstractBackedHashSet<K> extends THash {
 	 */
 	long checkForAdd(K val, boolean addIfNew) throws StorageException,
 			IOException {
-		long existing;
-		long index;
+		return checkForAdd(val, hashCode(val) & 0x7fffffff, addIfNew);
+	}
+
+	/**
+	 * As checkForAdd(val, addIfNew), for the given non-negative hash code of
+	 * val, i.e. hs.getHashCode(val) &amp; 0x7fffffff.
+	 */
+	long checkForAdd(K val, int hash, boolean addIfNew)
+			throws StorageException, IOException {
+		if (!addIfNew && !mightContain(hash)) {
+			countBloomNegative();
+			return 0;
+		}
 		// we need to synchronize here, otherwise the result of the
 		// get() method on the returned index, may return something
 		// different than the value at index according to inds
 		//
-		index = insertKey(val, -1, addIfNew);
-		if (index >= 0 && (index & EXISTFLAG) == EXISTFLAG) {
-			existing = get((int) (index ^ EXISTFLAG)) - 1;
-		} else if (addIfNew) {
-			existing = get((int) index) - 1;
-		} else {
-			existing = 0;
-		}
-
-		if (index >= 0 && (index & EXISTFLAG) == EXISTFLAG) {
+		long l = addOrFind(val, hash, -1, addIfNew);
+		if (l < 0) {
 			// already present in set, nothing to add, so return
 			// the stored long as a negative number
-			return -existing - 1;
+			return l;
 		}
 
 		if (addIfNew) {
 			postInsertHook(consumeFreeSlot);
-			return existing;// _set[index]; // yes, we added something
+			return l - 1;// _set[index]; // yes, we added something
 		} else {
+			if (bloom != null) {
+				countBloomFalsePositive();
+			}
 			return 0;// we checked and the object is not in here yet
 		}
 	}
 
+	/**
+	 * Returns the index in the backing store of the object that matches the
+	 * probe with the given non-negative hash code, or -1 if there is none. The
+	 * table is not modified.
+	 */
+	<P> long checkForProbe(P probe, ProbeOperation<P, K> op, int hash) throws StorageException, IOException {
+		if (!mightContain(hash)) {
+			countBloomNegative();
+			return -1;
+		}
+		long l = find(probe, op, hash, false);
+		if (l == 0 && oldLength() > 0) {
+			l = find(probe, op, hash, true);
+		}
+		if (l == 0 && bloom != null) {
+			countBloomFalsePositive();
+		}
+		return l - 1;
+	}
+
+	/**
+	 * Searches the current or the old table for an object matching the probe.
+	 * 
+	 * @return the pointer, or 0 if not found.
+	 */
+	private <P> long find(P probe, ProbeOperation<P, K> op, int hash, boolean old) throws StorageException,
+			IOException {
+		final int index = findSlot(probe, op, hash, old);
+		if (index < 0) {
+			return 0;
+		}
+		return old ? getOld(index) : get(index);
+	}
+
+	/**
+	 * Searches the current or the old table for an object matching the probe.
+	 * 
+	 * @return the slot of the object, or -1 if not found.
+	 */
+	private <P> int findSlot(P probe, ProbeOperation<P, K> op, int hash, boolean old) throws StorageException,
+			IOException {
+		final int length = old ? oldLength() : length();
+		final int[] hashes = old ? oldHashArray : hashArray;
+		final short[] fingerprints = old ? null : fingerprintArray;
+		int index = indexFor(hash, length);
+		final int probeDistance = probeFor(hash, length);
+		final int loopIndex = index;
+		do {
+			long atIndex = old ? getOld(index) : get(index);
+			if (impliesEmpty(index, atIndex)) {
+				return -1;
+			} else if (isRemoved(atIndex)) {
+				// continue probing
+			} else if ((hashes != null && hashes[index] != hash)
+					|| (fingerprints != null && fingerprints[index] != fingerprint(hash))) {
+				countAvoidedEquals();
+			} else if (op.matches(probe, store, atIndex - 1)) {
+				return index;
+			}
+			index -= probeDistance;
+			if (index < 0) {
+				index += length;
+			}
+		} while (index != loopIndex);
+		return -1;
+	}
+
+	/**
+	 * Removes val from the table. Its slot is marked as removed, such that
+	 * the probe sequences of other objects remain intact. The object itself
+	 * remains in the backing store until the store is compacted. While the
+	 * table is being resized incrementally, val is removed from both the new
+	 * and the old table.
+	 * 
+	 * @return the index of the removed object in the backing store, or -1 if
+	 *         val was not in the table.
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	long remove(K val) throws StorageException, IOException {
+		return remove(val, hashCode(val) & 0x7fffffff);
+	}
+
+	/**
+	 * As remove(val), for the given non-negative hash code of val.
+	 */
+	long remove(K val, int hash) throws StorageException, IOException {
+		final int index = findSlot(val, equalProbe, hash, false);
+		final int oldIndex = oldLength() > 0 ? findSlot(val, equalProbe, hash, true) : -1;
+		if (index < 0 && oldIndex < 0) {
+			return -1;
+		}
+		final long l = index >= 0 ? get(index) : getOld(oldIndex);
+		if (oldIndex >= 0) {
+			putRemovedOld(oldIndex);
+		}
+		if (index >= 0) {
+			putRemoved(index);
+		}
+		// THash only updates the size, which may trigger compaction of the
+		// table
+		removeAt(index);
+		return l - 1;
+	}
+
+	/**
+	 * Adds all values to the set. For each value, the index in the backing
+	 * store is stored in outIndices and isNew indicates whether the value was
+	 * added. All new values are stored in the backing store at once, after
+	 * which they are inserted into the table. A value that occurs more than
+	 * once in vals is inserted only once, but it is stored in the backing
+	 * store more than once.
+	 * 
+	 * @param vals
+	 * @param outIndices
+	 * @param isNew
+	 * @return the number of values added
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	int checkForAddAll(K[] vals, long[] outIndices, boolean[] isNew) throws StorageException, IOException {
+		final int n = vals.length;
+		final int[] hashes = new int[n];
+		int missing = 0;
+		// first, look up all values.
+		for (int i = 0; i < n; i++) {
+			hashes[i] = hashCode(vals[i]) & 0x7fffffff;
+			long l = mightContain(hashes[i]) ? addOrFind(vals[i], hashes[i], -1, false) : 0;
+			if (l < 0) {
+				outIndices[i] = -l - 1;
+				isNew[i] = false;
+			} else {
+				isNew[i] = true;
+				missing++;
+			}
+		}
+		if (missing == 0) {
+			return 0;
+		}
+		// store the missing values in one go
+		final K[] toStore = (K[]) Array.newInstance(vals.getClass().getComponentType(), missing);
+		final long[] stored = new long[missing];
+		for (int i = 0, j = 0; i < n; i++) {
+			if (isNew[i]) {
+				toStore[j++] = vals[i];
+			}
+		}
+		store.addAll(toStore, stored);
+		// and insert them
+		int added = 0;
+		for (int i = 0, j = 0; i < n; i++) {
+			if (isNew[i]) {
+				long l = addOrFind(vals[i], hashes[i], stored[j] + 1, true);
+				if (l < 0) {
+					// a duplicate within the batch
+					outIndices[i] = -l - 1;
+					isNew[i] = false;
+				} else {
+					outIndices[i] = stored[j];
+					postInsertHook(consumeFreeSlot);
+					added++;
+				}
+				j++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Inserts val with the given non-negative hash code, which the caller
+	 * already stored in the backing store at the given index, unless the
+	 * table already contains an equal value. In that case, the stored copy is
+	 * not used.
+	 * 
+	 * @return as checkForAdd(val, hash, true), i.e. minus the index of the
+	 *         equal value plus one if there is one, or the given index.
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	long insertStored(K val, int hash, long index) throws StorageException, IOException {
+		long l = addOrFind(val, hash, index + 1, true);
+		if (l < 0) {
+			return l;
+		}
+		postInsertHook(consumeFreeSlot);
+		return l - 1;
+	}
+
+	/**
+	 * Looks up val (or the pointer idx if val is null) with the given hash
+	 * code. While the table is being resized incrementally, both the new and
+	 * the old table are searched and values are only added to the new table.
+	 * Each call that adds also migrates a number of slots of the old table.
+	 * 
+	 * @return minus the pointer if the value was present, the pointer if it
+	 *         was added, or 0 if it was not present and not added.
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	private long addOrFind(K val, int hash, long idx, boolean addIfNew) throws StorageException, IOException {
+		if (addIfNew && oldLength() > 0) {
+			migrate(MIGRATESTEP);
+		}
+		final boolean resizing = oldLength() > 0;
+		long index = insertKey(val, hash, idx, addIfNew && !resizing);
+		if ((index & EXISTFLAG) == EXISTFLAG) {
+			return -get((int) (index ^ EXISTFLAG));
+		}
+		if (resizing) {
+			long l = findInOld(val, hash, idx);
+			if (l > 0) {
+				return -l;
+			}
+			if (addIfNew) {
+				consumeFreeSlot = !isRemoved(get((int) index));
+				l = store(val, idx);
+				put((int) index, l, hash);
+				return l;
+			}
+			return 0;
+		}
+		return addIfNew ? get((int) index) : 0;
+	}
+
 	/**
 	 * Locates the index at which <tt>val</tt> can be inserted. if there is
 	 * already a value equal()ing <tt>val</tt> in the set, returns that value as
@@ -103,42 +542,61 @@ abstract class AbstractBackedHashSet<K> extends THash {
 	protected long insertKey(K val, long idx, boolean addIfNew)
 			throws StorageException, IOException {
 		assert (val != null || idx != 0);
-		int hash, index;
+		int hash;
 		if (val == null) {
 			hash = hashCode(idx) & 0x7fffffff;
 		} else {
 			hash = hashCode(val) & 0x7fffffff;
 		}
-		index = hash % length();
+		return insertKey(val, hash, idx, addIfNew);
+	}
+
+	/**
+	 * As insertKey(val, idx, addIfNew), for a given non-negative hash code.
+	 */
+	private long insertKey(K val, int hash, long idx, boolean addIfNew) throws StorageException, IOException {
+		int index = indexFor(hash, length());
 		long atIndex = get(index);
 
 		// byte state = _states[index];
 
-		consumeFreeSlot = false;
+		if (addIfNew) {
+			// only written while adding, as lookups may run concurrently
+			consumeFreeSlot = false;
+		}
 
 		if (impliesEmpty(index, atIndex)) {
-			consumeFreeSlot = addIfNew;
 			// store the object in the backing store
 			// store the index here
 			if (addIfNew) {
-				put(index, store(val, idx));
+				consumeFreeSlot = true;
+				put(index, store(val, idx), hash);
 			}
 
 			return index; // empty, all done
-		} else if (idx == atIndex || (val != null && equals(val, atIndex))) {
+		} else if (isRemoved(atIndex)) {
+			// REMOVED, must probe for the value, but can reuse this slot
+			return insertKeyRehash(val, idx, index, hash, addIfNew, index);
+		} else if (idx == atIndex || (val != null && equals(val, hash, index, atIndex))) {
 			return EXISTFLAG | index; // already stored
 		}
 
-		// already FULL or REMOVED, must probe
-		return insertKeyRehash(val, idx, index, hash, addIfNew);
+		// already FULL, must probe
+		return insertKeyRehash(val, idx, index, hash, addIfNew, -1);
 	}
 
+	/**
+	 * Probes for val (or the pointer idx) from the slot index onwards. If the
+	 * value is not found, it is inserted in the first removed slot on the
+	 * probe sequence (firstRemoved, if non-negative), or otherwise in the
+	 * first free slot.
+	 */
 	private long insertKeyRehash(K val, long idx, int index, int hash,
-			boolean addIfNew) throws StorageException, IOException {
+			boolean addIfNew, int firstRemoved) throws StorageException, IOException {
 		assert (val != null || idx >= 0);
 		// compute the double hash
 		final int length = length();
-		int probe = 1 + (hash % (length - 2));
+		int probe = probeFor(hash, length);
 		final int loopIndex = index;
 
 		/**
@@ -155,25 +613,724 @@ abstract class AbstractBackedHashSet<K> extends THash {
 
 			// A FREE slot stops the search
 			if (impliesEmpty(index, atIndex)) {
+				if (firstRemoved >= 0) {
+					index = firstRemoved;
+				} else if (addIfNew) {
+					consumeFreeSlot = true;
+				}
 				// store the object in the backing store
 				// store the index here
 				if (addIfNew) {
-					put(index, store(val, idx));
+					put(index, store(val, idx), hash);
 				}
 				return index;
 
-			} else if (idx == atIndex || (val != null && equals(val, atIndex))) {
+			} else if (isRemoved(atIndex)) {
+				if (firstRemoved < 0) {
+					firstRemoved = index;
+				}
+			} else if (idx == atIndex || (val != null && equals(val, hash, index, atIndex))) {
 				return EXISTFLAG | index;
 			}
 
 			// Detect loop
 		} while (index != loopIndex);
 
+		if (firstRemoved >= 0) {
+			if (addIfNew) {
+				put(firstRemoved, store(val, idx), hash);
+			}
+			return firstRemoved;
+		}
 		// Can a resizing strategy be found that resizes the set?
 		throw new IllegalStateException(
 				"No free or removed slots available. Key set full?!!");
 	}
 
+	/**
+	 * Compares val, with the given hash code, to the object at atIndex in slot
+	 * i. If hash codes or fingerprints are kept, the backing store is only
+	 * accessed if they match.
+	 */
+	private boolean equals(K val, int hash, int i, long atIndex)
+			throws StorageException, IOException {
+		if (hashArray != null) {
+			if (hashArray[i] != hash) {
+				countAvoidedEquals();
+				return false;
+			}
+		} else if (fingerprintArray != null && fingerprintArray[i] != fingerprint(hash)) {
+			countAvoidedEquals();
+			return false;
+		}
+		return equals(val, atIndex);
+	}
+
+	/**
+	 * Returns the fingerprint of a non-negative hash code, i.e. its 16 highest
+	 * bits. The slot of an object mostly depends on the lower bits.
+	 */
+	private static short fingerprint(int hash) {
+		return (short) (hash >>> 15);
+	}
+
+	private void put(int i, long l, int hash) {
+		put(i, l);
+		if (bloom != null) {
+			bloom.add(hash);
+		}
+		if (hashArray != null) {
+			hashArray[i] = hash;
+		} else if (fingerprintArray != null) {
+			fingerprintArray[i] = fingerprint(hash);
+		}
+	}
+
+	/**
+	 * Replaces the cached hash codes or fingerprints by a new array of the
+	 * given capacity, to be called by rehash before reinserting the pointers.
+	 * 
+	 * @param newCapacity
+	 * @return the old hash codes, or null if hash codes are not cached.
+	 */
+	protected int[] rehashFilter(int newCapacity) {
+		if (bloom != null) {
+			bloom = createBloomFilter(newCapacity);
+		}
+		int[] oldHashes = hashArray;
+		if (oldHashes != null) {
+			hashArray = new int[newCapacity];
+		}
+		if (fingerprintArray != null) {
+			fingerprintArray = new short[newCapacity];
+		}
+		return oldHashes;
+	}
+
+	/**
+	 * Starts an incremental resize to the given capacity if incremental
+	 * resizing is enabled, to be called by rehash. A resize that is still in
+	 * progress is finished first. The old table is kept and its slots are
+	 * moved to the new table by subsequent additions, such that each addition
+	 * takes bounded time.
+	 * 
+	 * @param newCapacity
+	 * @return true if the resize has been started, false if rehash should
+	 *         reinsert all pointers itself.
+	 */
+	protected boolean rehashIncrementally(int newCapacity) {
+		if (!incremental) {
+			return false;
+		}
+		finishResize();
+		oldBloom = bloom;
+		oldHashArray = rehashFilter(newCapacity);
+		swapTables(newCapacity);
+		migrateIndex = oldLength();
+		return true;
+	}
+
+	/**
+	 * Migrates at most steps slots of the old table to the new table. When all
+	 * slots are migrated, the old table is released.
+	 */
+	private void migrate(int steps) throws StorageException, IOException {
+		while (steps-- > 0 && migrateIndex > 0) {
+			migrateIndex--;
+			long l = getOld(migrateIndex);
+			// the slot is not cleared, as the old table is still searched
+			if (!impliesEmpty(migrateIndex, l) && !isRemoved(l)) {
+				reinsert(l, oldHashArray, migrateIndex);
+			}
+		}
+		if (migrateIndex == 0) {
+			dropOldTable();
+			oldHashArray = null;
+			oldBloom = null;
+		}
+	}
+
+	/**
+	 * Migrates all remaining slots of the old table, if any.
+	 */
+	private void finishResize() {
+		if (oldLength() > 0) {
+			try {
+				migrate(migrateIndex);
+			} catch (Exception e) {
+				throw new RuntimeException("error while rehashing: C_new:" + length(), e);
+			}
+		}
+	}
+
+	/**
+	 * Searches the old table for val (or the pointer idx), using the same
+	 * probe sequence as insertKey.
+	 * 
+	 * @return the pointer, or 0 if not found.
+	 */
+	private long findInOld(K val, int hash, long idx) throws StorageException, IOException {
+		final int length = oldLength();
+		int index = indexFor(hash, length);
+		final int probe = probeFor(hash, length);
+		final int loopIndex = index;
+		do {
+			long atIndex = getOld(index);
+			if (impliesEmpty(index, atIndex)) {
+				return 0;
+			} else if (isRemoved(atIndex)) {
+				// continue probing
+			} else if (idx == atIndex) {
+				return atIndex;
+			} else if (val != null) {
+				if (oldHashArray != null && oldHashArray[index] != hash) {
+					countAvoidedEquals();
+				} else if (equals(val, atIndex)) {
+					return atIndex;
+				}
+			}
+			index -= probe;
+			if (index < 0) {
+				index += length;
+			}
+		} while (index != loopIndex);
+		return 0;
+	}
+
+	/**
+	 * Enables or disables incremental resizing. If enabled, a resize only
+	 * allocates the new table and the pointers are moved to it by the next
+	 * additions, MIGRATESTEP slots at a time. This avoids long pauses when a
+	 * large table grows, at the cost of keeping both tables in memory during
+	 * the resize and probing both when looking up a value.
+	 * 
+	 * @param incremental
+	 */
+	public void setIncrementalRehash(boolean incremental) {
+		if (!incremental) {
+			finishResize();
+		}
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Returns true if the table is resized incrementally.
+	 * 
+	 * @return
+	 */
+	public boolean isIncrementalRehash() {
+		return incremental;
+	}
+
+	/**
+	 * Returns true if an incremental resize is in progress.
+	 * 
+	 * @return
+	 */
+	public boolean isResizing() {
+		return oldLength() > 0;
+	}
+
+	/**
+	 * Enables or disables parallel rehashing. If enabled, a table of at least
+	 * PARALLELTHRESHOLD slots that grows is rehashed by the tasks of a
+	 * fork/join pool with a thread per processor, which shortens the pause of
+	 * the adding thread roughly by the number of processors. If incremental
+	 * resizing is also enabled, tables are resized incrementally.
+	 * 
+	 * The HashOperation of the table should allow hash codes of stored
+	 * objects to be computed concurrently.
+	 * 
+	 * @param parallel
+	 */
+	public void setParallelRehash(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Returns true if large tables are rehashed in parallel.
+	 * 
+	 * @return
+	 */
+	public boolean isParallelRehash() {
+		return parallel;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	/**
+	 * Rehashes the table into a new table of the given capacity using the
+	 * fork/join pool, if parallel rehashing is enabled and the table is large
+	 * enough, to be called by rehash. This is done in four phases:
+	 * <ol>
+	 * <li>The old table is split in chunks. For each chunk, a task computes
+	 * the hash codes of its objects (unless they are cached) and counts the
+	 * objects per stripe of the new table, i.e. per range of slots in which
+	 * their probe sequence starts.</li>
+	 * <li>For each chunk, a task sorts its objects by stripe.</li>
+	 * <li>For each stripe, a task inserts its objects in the slots of that
+	 * stripe. As no other task writes to these slots, no synchronization is
+	 * needed. An object is skipped if its probe sequence leaves the stripe
+	 * before a free slot is found.</li>
+	 * <li>The skipped objects are inserted by the calling thread, after which
+	 * the Bloom filter is filled.</li>
+	 * </ol>
+	 * After growing, the new table is at most about a quarter full, hence
+	 * most objects are inserted in the first slot of their probe sequence.
+	 * 
+	 * @param newCapacity
+	 * @return true if the table has been rehashed, false if rehash should
+	 *         reinsert all pointers itself.
+	 */
+	protected boolean rehashInParallel(int newCapacity) {
+		if (!parallel || length() < PARALLELTHRESHOLD || getPool().getParallelism() < 2) {
+			return false;
+		}
+		new ParallelRehash(newCapacity).run();
+		return true;
+	}
+
+	/**
+	 * The state of a parallel rehash.
+	 */
+	private final class ParallelRehash {
+
+		private final int newCapacity;
+		private final int oldCapacity;
+		private final int tasks;
+		// the number of slots of the old table per chunk
+		private final int chunk;
+		// the number of slots of the new table per stripe is 1 << stripeShift
+		private final int stripeShift;
+		private final int stripes;
+		// true if the hash codes are cached in hashes
+		private final boolean cached;
+		// the hash code of the object in each slot of the old table
+		private final int[] hashes;
+		// per chunk, the number of objects per stripe, which are turned into
+		// the offsets in order at which the chunk writes its objects
+		private final int[][] counts;
+		// the slots of the old table ordered by stripe, or ~slot if the object
+		// was skipped
+		private int[] order;
+		// the index in order of the first object of each stripe
+		private final int[] starts;
+		private int objects;
+
+		public ParallelRehash(int newCapacity) {
+			this.newCapacity = newCapacity;
+			this.tasks = getPool().getParallelism() * TASKSPERTHREAD;
+			int[] oldHashes = rehashFilter(newCapacity);
+			swapTables(newCapacity);
+			this.oldCapacity = oldLength();
+			this.cached = oldHashes != null;
+			this.hashes = cached ? oldHashes : new int[oldCapacity];
+			this.chunk = (oldCapacity + tasks - 1) / tasks;
+			int stripeSize = (newCapacity + tasks - 1) / tasks;
+			this.stripeShift = 32 - Integer.numberOfLeadingZeros(stripeSize - 1);
+			this.stripes = ((newCapacity - 1) >>> stripeShift) + 1;
+			this.counts = new int[tasks][stripes];
+			this.starts = new int[stripes + 1];
+		}
+
+		public void run() {
+			// the Bloom filter is shared by all stripes, hence it is filled
+			// afterwards
+			final BlockedBloomFilter filter = bloom;
+			bloom = null;
+			try {
+				getPool().invoke(new Phase(0, 0, tasks));
+				objects = 0;
+				for (int s = 0; s < stripes; s++) {
+					starts[s] = objects;
+					for (int c = 0; c < tasks; c++) {
+						int count = counts[c][s];
+						counts[c][s] = objects;
+						objects += count;
+					}
+				}
+				starts[stripes] = objects;
+				order = new int[objects];
+				getPool().invoke(new Phase(1, 0, tasks));
+				getPool().invoke(new Phase(2, 0, stripes));
+				for (int k = 0; k < objects; k++) {
+					if (order[k] < 0) {
+						int i = ~order[k];
+						insertKey(null, hashes[i], getOld(i), true);
+					}
+				}
+				if (filter != null) {
+					for (int k = 0; k < objects; k++) {
+						filter.add(hashes[order[k] < 0 ? ~order[k] : order[k]]);
+					}
+				}
+			} catch (Exception e) {
+				throw new RuntimeException("error while rehashing: C_old:" + oldCapacity + " C_new:" + newCapacity, e);
+			} finally {
+				bloom = filter;
+				dropOldTable();
+			}
+		}
+
+		private boolean isOccupied(long l) {
+			return !impliesEmpty(0, l) && !isRemoved(l);
+		}
+
+		private int stripe(int hash) {
+			return indexFor(hash, newCapacity) >>> stripeShift;
+		}
+
+		/**
+		 * computes the hash codes of the objects in chunk c and counts them
+		 * per stripe.
+		 */
+		private void count(int c) throws StorageException {
+			final int[] count = counts[c];
+			for (int i = c * chunk, end = Math.min(oldCapacity, i + chunk); i < end; i++) {
+				long l = getOld(i);
+				if (isOccupied(l)) {
+					if (!cached) {
+						hashes[i] = AbstractBackedHashSet.this.hashCode(l) & 0x7fffffff;
+					}
+					count[stripe(hashes[i])]++;
+				}
+			}
+		}
+
+		/**
+		 * writes the slots of the objects in chunk c to order, by stripe.
+		 */
+		private void sort(int c) {
+			final int[] offset = counts[c];
+			for (int i = c * chunk, end = Math.min(oldCapacity, i + chunk); i < end; i++) {
+				if (isOccupied(getOld(i))) {
+					order[offset[stripe(hashes[i])]++] = i;
+				}
+			}
+		}
+
+		/**
+		 * inserts the objects of stripe s in the slots of that stripe.
+		 */
+		private void insert(int s) {
+			final int from = s << stripeShift;
+			final int to = Math.min(newCapacity, from + (1 << stripeShift));
+			for (int k = starts[s]; k < starts[s + 1]; k++) {
+				final int i = order[k];
+				final int hash = hashes[i];
+				final int probe = probeFor(hash, newCapacity);
+				int index = indexFor(hash, newCapacity);
+				while (true) {
+					if (index < from || index >= to) {
+						order[k] = ~i;
+						break;
+					} else if (impliesEmpty(index, get(index))) {
+						put(index, getOld(i), hash);
+						break;
+					}
+					index -= probe;
+					if (index < 0) {
+						index += newCapacity;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Runs one phase for the tasks (chunks or stripes) from (inclusive) to
+		 * (exclusive).
+		 */
+		private final class Phase extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final int phase, from, to;
+
+			public Phase(int phase, int from, int to) {
+				this.phase = phase;
+				this.from = from;
+				this.to = to;
+			}
+
+			protected void compute() {
+				if (to - from > 1) {
+					int mid = (from + to) >>> 1;
+					invokeAll(new Phase(phase, from, mid), new Phase(phase, mid, to));
+				} else if (phase == 0) {
+					try {
+						count(from);
+					} catch (StorageException e) {
+						throw new RuntimeException(e);
+					}
+				} else if (phase == 1) {
+					sort(from);
+				} else {
+					insert(from);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reinserts the pointer l that was stored in slot i of the old table. If
+	 * oldHashes is not null, the hash code is taken from it, otherwise it is
+	 * computed from the backing store.
+	 * 
+	 * @param l
+	 * @param oldHashes
+	 * @param i
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	protected void reinsert(long l, int[] oldHashes, int i)
+			throws StorageException, IOException {
+		if (oldHashes == null) {
+			insertKey(null, l, true);
+		} else {
+			insertKey(null, oldHashes[i], l, true);
+		}
+	}
+
+	/**
+	 * Returns the memory used by the cached hash codes or fingerprints.
+	 * 
+	 * @return
+	 */
+	protected long getFilterMemory() {
+		long memory = 0;
+		if (bloom != null) {
+			memory += bloom.getMemory();
+		}
+		if (oldBloom != null) {
+			memory += oldBloom.getMemory();
+		}
+		if (hashArray != null) {
+			return memory + 4 * hashArray.length;
+		} else if (fingerprintArray != null) {
+			return memory + 2 * fingerprintArray.length;
+		}
+		return memory;
+	}
+
+	/**
+	 * Enables a Bloom filter with the given number of bits per object that
+	 * the table can hold before it grows, or disables it if bits is 0. The
+	 * filter answers most lookups of objects that are not in the table
+	 * without probing the table. It grows with the table, hence the number
+	 * of bits per object in the table varies between bits and bits /
+	 * loadfactor, rounded up to a power of two number of words. With 8 bits
+	 * per object, less than 1% of these lookups pass the filter.
+	 * 
+	 * If the table is not empty, the filter is filled with the hash codes of
+	 * its objects, which are computed from the backing store if they are not
+	 * cached. Objects that are removed from the table remain in the filter
+	 * until the table is rehashed.
+	 * 
+	 * @param bits
+	 */
+	public void setBloomFilter(int bits) {
+		finishResize();
+		this.bloomBits = bits;
+		if (bits <= 0) {
+			bloom = null;
+			return;
+		}
+		bloom = createBloomFilter(length());
+		for (int i = length(); i-- > 0;) {
+			long l = get(i);
+			if (!impliesEmpty(i, l) && !isRemoved(l)) {
+				try {
+					bloom.add(hashArray != null ? hashArray[i] : hashCode(l) & 0x7fffffff);
+				} catch (StorageException e) {
+					throw new RuntimeException("error while filling the Bloom filter", e);
+				}
+			}
+		}
+	}
+
+	private BlockedBloomFilter createBloomFilter(int capacity) {
+		return new BlockedBloomFilter((long) (capacity * _loadFactor) * bloomBits);
+	}
+
+	/**
+	 * Returns false if the Bloom filter shows that there is no object with
+	 * the given non-negative hash code in the table.
+	 */
+	private boolean mightContain(int hash) {
+		return bloom == null || bloom.mightContain(hash) || (oldBloom != null && oldBloom.mightContain(hash));
+	}
+
+	/**
+	 * Returns the number of lookups of objects that are not in the table that
+	 * were answered by the Bloom filter.
+	 * 
+	 * @return
+	 */
+	public long getBloomNegatives() {
+		return sharedCounts == null ? bloomNegatives : sharedCounts.get(BLOOMNEGATIVES);
+	}
+
+	/**
+	 * Returns the number of lookups of objects that are not in the table that
+	 * passed the Bloom filter.
+	 * 
+	 * @return
+	 */
+	public long getBloomFalsePositives() {
+		return sharedCounts == null ? bloomFalsePositives : sharedCounts.get(BLOOMFALSEPOSITIVES);
+	}
+
+	/**
+	 * Estimates the false positive rate of the Bloom filter from the
+	 * fraction of its bits that is set, or returns 1 if there is no Bloom
+	 * filter.
+	 * 
+	 * @return
+	 */
+	public double getEstimatedBloomFalsePositiveRate() {
+		return bloom == null ? 1.0 : bloom.getEstimatedFalsePositiveRate();
+	}
+
+	/**
+	 * Returns the filter used by this set.
+	 * 
+	 * @return
+	 */
+	public ProbeFilter getProbeFilter() {
+		if (hashArray != null) {
+			return ProbeFilter.HASHCODE;
+		} else if (fingerprintArray != null) {
+			return ProbeFilter.FINGERPRINT;
+		}
+		return ProbeFilter.NONE;
+	}
+
+	/**
+	 * Returns the number of times a value was not compared to a stored
+	 * object, since the hash code or fingerprint of the object in the probed
+	 * slot did not match.
+	 * 
+	 * @return
+	 */
+	public long getAvoidedEqualityChecks() {
+		return sharedCounts == null ? avoidedEquals : sharedCounts.get(AVOIDEDEQUALS);
+	}
+
+	private void countAvoidedEquals() {
+		if (sharedCounts == null) {
+			avoidedEquals++;
+		} else {
+			sharedCounts.incrementAndGet(AVOIDEDEQUALS);
+		}
+	}
+
+	private void countBloomNegative() {
+		if (sharedCounts == null) {
+			bloomNegatives++;
+		} else {
+			sharedCounts.incrementAndGet(BLOOMNEGATIVES);
+		}
+	}
+
+	private void countBloomFalsePositive() {
+		if (sharedCounts == null) {
+			bloomFalsePositives++;
+		} else {
+			sharedCounts.incrementAndGet(BLOOMFALSEPOSITIVES);
+		}
+	}
+
+	/**
+	 * Allows lookups, i.e. checkForAdd without adding and checkForProbe, to
+	 * run concurrently with each other, for example under a shared read lock.
+	 * Lookups do not modify the table, but they do update the counters, which
+	 * are then updated atomically. Additions and removals should still be
+	 * exclusive.
+	 * 
+	 * @param concurrent
+	 */
+	void setConcurrentLookups(boolean concurrent) {
+		if (concurrent && sharedCounts == null) {
+			sharedCounts = new AtomicLongArray(3);
+			sharedCounts.set(AVOIDEDEQUALS, avoidedEquals);
+			sharedCounts.set(BLOOMNEGATIVES, bloomNegatives);
+			sharedCounts.set(BLOOMFALSEPOSITIVES, bloomFalsePositives);
+		} else if (!concurrent && sharedCounts != null) {
+			avoidedEquals = sharedCounts.get(AVOIDEDEQUALS);
+			bloomNegatives = sharedCounts.get(BLOOMNEGATIVES);
+			bloomFalsePositives = sharedCounts.get(BLOOMFALSEPOSITIVES);
+			sharedCounts = null;
+		}
+	}
+
+	/**
+	 * Returns the first slot to probe for the given non-negative hash code in
+	 * a table of the given length. In a linear layout, the hash code is mixed
+	 * first, as only its lowest bits are used.
+	 */
+	private int indexFor(int hash, int length) {
+		if (linear) {
+			int h = hash * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (length - 1);
+		}
+		return hash % length;
+	}
+
+	/**
+	 * Returns the distance between successive slots probed for the given
+	 * non-negative hash code in a table of the given length.
+	 */
+	private int probeFor(int hash, int length) {
+		return linear ? 1 : 1 + (hash % (length - 2));
+	}
+
+	/**
+	 * Returns the capacity of the table to use for the given capacity, to be
+	 * called by rehash. In a linear layout, this is the power of two at or
+	 * below the requested capacity, as THash requests the prime just above
+	 * twice the current capacity when growing, and rounding up would quadruple
+	 * the table. It is only doubled further if the current objects would not
+	 * fit. If the requested capacity overflowed, the largest capacity
+	 * is returned, or an IllegalStateException is thrown if the table already
+	 * has that capacity.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	protected int tableCapacity(int capacity) {
+		if (capacity <= size()) {
+			// doubling the capacity overflowed
+			final int max = linear ? MAXLINEARCAPACITY : MAXCAPACITY;
+			if (length() >= max) {
+				throw new IllegalStateException("[AbstractBackedHashSet] Attempt to store more than " + size()
+						+ " objects in one table. Use a set with more segments.");
+			}
+			return max;
+		}
+		if (!linear) {
+			return Math.min(capacity, MAXCAPACITY);
+		} else if (capacity > MAXLINEARCAPACITY) {
+			return MAXLINEARCAPACITY;
+		}
+		int result = capacity <= 2 ? 2 : Integer.highestOneBit(capacity);
+		while (result < MAXLINEARCAPACITY && Math.min(result - 1, (int) (result * _loadFactor)) <= size()) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the layout of the table.
+	 * 
+	 * @return
+	 */
+	public Layout getLayout() {
+		return linear ? Layout.LINEAR : Layout.DOUBLEHASHING;
+	}
+
 	private long store(K val, long idx) throws StorageException {
 		if (idx >= 0) {
 			return idx;
@@ -193,9 +1350,48 @@ abstract class AbstractBackedHashSet<K> extends THash {
 
 	protected abstract void putEmpty(int i);
 
+	/**
+	 * Marks slot i as removed.
+	 */
+	protected abstract void putRemoved(int i);
+
+	/**
+	 * Marks slot i of the old table as removed.
+	 */
+	protected abstract void putRemovedOld(int i);
+
+	/**
+	 * Returns true if the pointer returned by get or getOld marks a removed
+	 * slot.
+	 */
+	protected static boolean isRemoved(long atIndex) {
+		return atIndex == REMOVED;
+	}
+
 	// Check if the long value stored at index i represents empty
 	protected abstract boolean impliesEmpty(int i, long atIndex);
 
+	/**
+	 * Keeps the current table as the old table and replaces it by an empty
+	 * table of the given capacity.
+	 */
+	protected abstract void swapTables(int newCapacity);
+
+	/**
+	 * Returns the pointer in slot i of the old table.
+	 */
+	protected abstract long getOld(int i);
+
+	/**
+	 * Returns the length of the old table, or 0 if there is none.
+	 */
+	protected abstract int oldLength();
+
+	/**
+	 * Releases the old table.
+	 */
+	protected abstract void dropOldTable();
+
 	public CompressedStore<K> getStore() {
 		return store;
 	}
@@ -203,8 +1399,126 @@ abstract class AbstractBackedHashSet<K> extends THash {
 	public abstract long getMemory();
 
 	void removeAll() {
+		clearTable();
+		store.removeAll();
+	}
+
+	/**
+	 * removes all elements from the table, without clearing the backing store.
+	 */
+	void clearTable() {
+		dropOldTable();
+		oldHashArray = null;
+		oldBloom = null;
+		clear();
 		setUp(HashFunctions.fastCeil(initialCapacity / _loadFactor));
+	}
+
+	/**
+	 * Writes the indices in the backing store of all objects in the table to
+	 * indices, starting at offset. An incremental resize in progress is
+	 * finished first.
+	 * 
+	 * @param indices
+	 * @param offset
+	 * @return the offset after the last index written
+	 */
+	int getIndices(long[] indices, int offset) {
+		finishResize();
+		for (int i = length(); i-- > 0;) {
+			long l = get(i);
+			if (!impliesEmpty(i, l) && !isRemoved(l)) {
+				indices[offset++] = l - 1;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Replaces the contents of the table by the objects at the given indices
+	 * in the backing store, from (inclusive) to (exclusive). The backing store
+	 * is not modified.
+	 * 
+	 * @param indices
+	 * @param from
+	 * @param to
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	void rebuild(long[] indices, int from, int to) throws StorageException, IOException {
+		dropOldTable();
+		oldHashArray = null;
+		oldBloom = null;
 		clear();
-		store.removeAll();
+		setUp(HashFunctions.fastCeil(Math.max(to - from, initialCapacity) / _loadFactor));
+		for (int i = from; i < to; i++) {
+			insertKey(null, indices[i] + 1, true);
+			postInsertHook(consumeFreeSlot);
+		}
+	}
+
+	/**
+	 * Compacts the backing store shared by the given tables, such that it
+	 * only contains the objects in these tables, after which the tables are
+	 * rebuilt. Hence, the memory of removed objects is reclaimed. The store
+	 * should be an AbstractCompressedStoreImpl or a
+	 * SizeClassCompressedStoreImpl, and no other thread should use the tables
+	 * or the store in the meantime.
+	 * 
+	 * Besides the store, compaction temporarily needs about 60 bytes per
+	 * object, which limits it to 2^31 objects.
+	 * 
+	 * @param store
+	 * @param tables
+	 * @return a map from the old index of each object in the store to its new
+	 *         index. For other indices, the map returns -1.
+	 * @throws StorageException
+	 */
+	static <K> TLongLongMap compact(CompressedStore<K> store, AbstractBackedHashSet<K>[] tables)
+			throws StorageException {
+		if (!(store instanceof AbstractCompressedStoreImpl) && !(store instanceof SizeClassCompressedStoreImpl)) {
+			throw new UnsupportedOperationException("A " + store.getClass().getSimpleName()
+					+ " cannot be compacted.");
+		}
+		long size = 0;
+		for (int s = 0; s < tables.length; s++) {
+			size += tables[s].size();
+		}
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new UnsupportedOperationException("Cannot compact a store of " + size + " objects.");
+		}
+		// the indices of the objects per table
+		final long[] indices = new long[(int) size];
+		final int[] ends = new int[tables.length];
+		int n = 0;
+		for (int s = 0; s < tables.length; s++) {
+			n = tables[s].getIndices(indices, n);
+			ends[s] = n;
+		}
+		// the store rewrites the objects in the order in which they are stored
+		final long[] sorted = indices.clone();
+		Arrays.sort(sorted);
+		final long[] moved = new long[n];
+		if (store instanceof SizeClassCompressedStoreImpl) {
+			((SizeClassCompressedStoreImpl<K>) store).compact(sorted, moved);
+		} else {
+			((AbstractCompressedStoreImpl<K, ?>) store).compact(sorted, moved);
+		}
+
+		final TLongLongMap remap = new TLongLongHashMap(n, 0.5f, -1, -1);
+		for (int i = 0; i < n; i++) {
+			remap.put(sorted[i], moved[i]);
+		}
+		for (int i = 0; i < n; i++) {
+			indices[i] = remap.get(indices[i]);
+		}
+		try {
+			for (int s = 0; s < tables.length; s++) {
+				tables[s].rebuild(indices, s == 0 ? 0 : ends[s - 1], ends[s]);
+			}
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: " + e.getMessage());
+		}
+		return remap;
 	}
 }
@@ -0,0 +1,923 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import nl.tue.storage.CompressedStore;
+import nl.tue.storage.Deflater;
+import nl.tue.storage.FastByteArrayInputStream;
+import nl.tue.storage.Inflater;
+import nl.tue.storage.ResizeableFastByteArrayOutputStream;
+import nl.tue.storage.StorageException;
+import nl.tue.storage.impl.CompressedStoreImpl.Allocation;
+
+/**
+ * CompressedStore that stores objects in a sequence of blocks of equal size.
+ * This class implements the reservation of space in the blocks and the
+ * deflation of objects into them, subclasses decide what a block is.
+ * 
+ * The way in which space is reserved in the store for a new object depends on
+ * the Allocation mode. With SYNCHRONIZED allocation, space is reserved while
+ * holding the monitor of the store and the object is copied into the block
+ * while holding the monitor of the block. With CONCURRENT allocation, space is
+ * reserved using a compare-and-set on the size of the store and the object is
+ * copied without taking any monitor. In that case, readers should obtain the
+ * indices of objects through a happens-before relation with the thread that
+ * stored the object, for example the lock of a CompressedHashSet.
+ * 
+ * With THREADLOCAL allocation, each writing thread claims a private chunk of
+ * TLABSIZE bytes in the store (using the same compare-and-set) and reserves
+ * space for its objects inside that chunk without any shared-memory traffic.
+ * The unused tail of a chunk is added to the wasted memory when the thread
+ * claims its next chunk.
+ * 
+ * In THREADLOCAL mode, if the deflater provides a maximum byte count that
+ * fits in the chunk of the current thread, the store reserves that many bytes
+ * in the chunk and the object is deflated directly into it, after which the
+ * reservation is trimmed to the actual size. As no other thread reserves
+ * space in the chunk, the trimmed bytes are never wasted. In SYNCHRONIZED
+ * mode, the store does the same in the current block while holding its
+ * monitor, i.e. objects are then deflated one at a time. Otherwise, the
+ * object is deflated into a scratch buffer of the current thread, after which
+ * exactly its size is reserved and the object is copied. These buffers are
+ * reused, hence deflaters should not add objects to a store themselves.
+ * 
+ * By default, objects never cross block boundaries, i.e. an object that does
+ * not fit in the current block is stored in the next one, wasting the tail of
+ * the current block, and objects larger than a block cannot be stored. In
+ * spanning mode, objects are stored contiguously over consecutive blocks. In
+ * that case, readers and writers of an object synchronize on the block in
+ * which the object starts.
+ * 
+ * @param <T>
+ *            the type of the stored objects
+ * @param <B>
+ *            the type of the blocks
+ */
+public abstract class AbstractCompressedStoreImpl<T, B> implements CompressedStore<T> {
+
+	/**
+	 * A thread-local allocation buffer, i.e. a chunk of the store owned by a
+	 * single thread.
+	 */
+	private static final class TLAB {
+		/**
+		 * the first free index in the chunk
+		 */
+		long top;
+		/**
+		 * the end of the chunk (exclusive)
+		 */
+		long end;
+		/**
+		 * bytes wasted on alignment in the chunk so far
+		 */
+		long wasted;
+		/**
+		 * the epoch of the store in which the chunk was claimed
+		 */
+		int epoch = -1;
+	}
+
+	/**
+	 * size of the chunks claimed by each thread in THREADLOCAL mode. Defaults
+	 * to 4 kBytes (or the blocksize if smaller).
+	 */
+	public static final int TLABSIZE = 4 * 1024;
+
+	/**
+	 * initial size of the scratch buffers
+	 */
+	private static final int SCRATCHSIZE = 256;
+
+	/**
+	 * the scratch buffer of each thread, used for deflating objects of which
+	 * the size is not known in advance. The buffers are shared by all stores.
+	 */
+	private static final ThreadLocal<ResizeableFastByteArrayOutputStream> SCRATCH = new ThreadLocal<ResizeableFastByteArrayOutputStream>();
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<AbstractCompressedStoreImpl> SIZE = AtomicLongFieldUpdater
+			.newUpdater(AbstractCompressedStoreImpl.class, "size");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<AbstractCompressedStoreImpl> WASTED = AtomicLongFieldUpdater
+			.newUpdater(AbstractCompressedStoreImpl.class, "wasted");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<AbstractCompressedStoreImpl> BUFFERS = AtomicLongFieldUpdater
+			.newUpdater(AbstractCompressedStoreImpl.class, "bufferAllocations");
+
+	/**
+	 * internal blocksize
+	 */
+	protected final int blockSize;
+
+	/**
+	 * The actual store in which bytes are stored.
+	 */
+	protected volatile B[] store;
+
+	/**
+	 * current size of the storage, also the first index in which I can store
+	 */
+	protected volatile long size;
+
+	/**
+	 * current number of blocks
+	 */
+	protected volatile int blocks;
+
+	/**
+	 * current number of wasted bytes
+	 */
+	protected volatile long wasted;
+
+	/**
+	 * deflater used to deflate an object into a byte array
+	 * 
+	 */
+	protected final Deflater<? super T> deflater;
+
+	/**
+	 * inflater used to inflate the byte array to an object, if provided
+	 */
+	protected final Inflater<? extends T> inflater;
+
+	/**
+	 * byte alignment
+	 */
+	protected final int alignment;
+
+	/**
+	 * the allocation mode
+	 */
+	protected final Allocation allocation;
+
+	/**
+	 * if true, objects may span multiple blocks
+	 */
+	protected final boolean spanning;
+
+	/**
+	 * the chunk of each thread in THREADLOCAL mode
+	 */
+	private final ThreadLocal<TLAB> tlabs;
+
+	/**
+	 * the size of each thread-local chunk
+	 */
+	private final int tlabSize;
+
+	/**
+	 * incremented on every removeAll() to invalidate all thread-local chunks
+	 */
+	protected volatile int epoch;
+
+	/**
+	 * number of scratch buffers allocated (or grown) by this store
+	 */
+	private volatile long bufferAllocations;
+
+	/**
+	 * 
+	 * @param alignment
+	 * @param deflater
+	 * @param inflater
+	 * @param blockSize
+	 * @param allocation
+	 * @param spanning
+	 *            if true, objects may span multiple blocks
+	 */
+	protected AbstractCompressedStoreImpl(int alignment, Deflater<? super T> deflater,
+			Inflater<? extends T> inflater, int blockSize, Allocation allocation, boolean spanning) {
+		this.alignment = alignment;
+		this.spanning = spanning;
+		this.deflater = deflater;
+		this.inflater = inflater;
+		this.allocation = allocation;
+		// Blocksize needs to be an exact multiple of alignment, with a minimum of 8
+		this.blockSize = blockSize / alignment >= 8 ? alignment * (blockSize / alignment) : 8 * alignment;
+		// so does the size of the thread-local chunks
+		this.tlabSize = Math.min(this.blockSize, TLABSIZE % alignment == 0 ? TLABSIZE : TLABSIZE + alignment
+				- (TLABSIZE % alignment));
+		if (allocation == Allocation.THREADLOCAL) {
+			this.tlabs = new ThreadLocal<TLAB>() {
+				protected TLAB initialValue() {
+					return new TLAB();
+				}
+			};
+		} else {
+			this.tlabs = null;
+		}
+		removeAll();
+	}
+
+	/**
+	 * Creates an array that can hold the given number of blocks.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	protected abstract B[] createStore(int length);
+
+	/**
+	 * Allocates the block with the given index. Blocks are allocated in
+	 * order, i.e. block i is only allocated after block i-1, and always while
+	 * holding the monitor of the store.
+	 * 
+	 * @param block
+	 * @return a block of getBlockSize() bytes
+	 * @throws StorageException
+	 */
+	protected abstract B allocateBlock(int block) throws StorageException;
+
+	/**
+	 * Copies len bytes of the given array into the store at the given index.
+	 * All blocks in the range are allocated and reserved by the caller.
+	 * 
+	 * @param bytes
+	 * @param off
+	 * @param len
+	 * @param index
+	 * @throws StorageException
+	 */
+	protected abstract void copy(byte[] bytes, int off, int len, long index) throws StorageException;
+
+	/**
+	 * Deflates the object directly into the store, starting at startIndex.
+	 * All blocks up to endIndex are allocated and reserved by the caller.
+	 * 
+	 * @param object
+	 * @param startIndex
+	 * @param endIndex
+	 *            the end of the reserved range (exclusive)
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if deflation fails, or the deflater writes beyond endIndex
+	 */
+	protected abstract long deflateInPlace(T object, long startIndex, long endIndex) throws IOException;
+
+	/**
+	 * Creates an empty store with the same settings as this store, into which
+	 * compact copies the remaining objects. The copy uses SYNCHRONIZED
+	 * allocation, as it is only used by one thread.
+	 * 
+	 * @return
+	 */
+	protected abstract AbstractCompressedStoreImpl<T, B> createCopy();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedStore#addToStorage(T)
+	 */
+	public long addToStorage(T object) throws StorageException {
+
+		final long startIndex;
+		final int s;
+		final int cnt = deflater.getMaxByteCount();
+		final TLAB tlab = allocation == Allocation.THREADLOCAL ? tlabs.get() : null;
+		if (cnt > 0 && tlab != null && fitsInChunk(cnt, tlab)) {
+			return addInPlace(object, cnt, tlab);
+		}
+		if (cnt > 0 && allocation == Allocation.SYNCHRONIZED && (spanning || cnt <= blockSize)) {
+			final long index = addInPlaceSynchronized(object, cnt);
+			if (index >= 0) {
+				return index;
+			}
+		}
+		// deflate into the scratch buffer of this thread, which is only
+		// reallocated if it needs to grow.
+		final ResizeableFastByteArrayOutputStream out = getScratch();
+		final byte[] buffer = out.getByteArray();
+		try {
+			deflater.deflate(object, out);
+		} catch (IOException e) {
+			throw new StorageException(e.getMessage());
+		} finally {
+			if (out.getByteArray() != buffer) {
+				BUFFERS.incrementAndGet(this);
+			}
+		}
+		if (!spanning && out.getSize() > blockSize) {
+			// do not keep a buffer larger than any object we can store
+			SCRATCH.remove();
+			// throw an exception, as we cannot store this object into
+			// a single array.
+			throw new StorageException("Object too large to be stored, increase the "
+					+ "blocksize of the storage and try again");
+		}
+		s = out.getSize();
+		startIndex = addDeflated(out.getByteArray(), 0, s);
+		if (startIndex % blockSize + s > blockSize && out.getByteArray().length > Math.max(blockSize, BLOCKSIZE)) {
+			// the object spans multiple blocks, do not keep very large buffers
+			// around
+			SCRATCH.remove();
+		}
+		return startIndex;
+
+	}
+
+	/**
+	 * Stores an object of which the deflated bytes are given, i.e. the bytes
+	 * are copied into the store once, and returns its index.
+	 * 
+	 * @param bytes
+	 * @param off
+	 * @param len
+	 * @return
+	 * @throws StorageException
+	 */
+	long addDeflated(byte[] bytes, int off, int len) throws StorageException {
+		if (!spanning && len > blockSize) {
+			throw new StorageException("Object too large to be stored, increase the "
+					+ "blocksize of the storage and try again");
+		}
+		final TLAB tlab = allocation == Allocation.THREADLOCAL ? tlabs.get() : null;
+		final long startIndex = tlab != null ? reserveLocal(len, tlab) : allocate(len);
+		final B block = getBlock((int) (startIndex / blockSize));
+		if (startIndex % blockSize + len > blockSize) {
+			// the object spans multiple blocks
+			getBlock((int) ((startIndex + len - 1) / blockSize));
+		}
+		if (allocation != Allocation.SYNCHRONIZED) {
+			// no monitor needed, nobody else writes in the reserved range
+			copy(bytes, off, len, startIndex);
+		} else {
+			synchronized (block) {
+				copy(bytes, off, len, startIndex);
+			}
+		}
+		return startIndex;
+	}
+
+	/**
+	 * Returns the (empty) scratch buffer of the current thread
+	 * 
+	 * @return
+	 */
+	private ResizeableFastByteArrayOutputStream getScratch() {
+		ResizeableFastByteArrayOutputStream out = SCRATCH.get();
+		if (out == null) {
+			out = new ResizeableFastByteArrayOutputStream(SCRATCHSIZE);
+			SCRATCH.set(out);
+			BUFFERS.incrementAndGet(this);
+		}
+		out.reset();
+		return out;
+	}
+
+	/**
+	 * Adds all objects to the store. The objects are first deflated into the
+	 * scratch buffer of the current thread, after which space for the whole
+	 * batch is reserved at once and the objects are copied while holding the
+	 * monitor of the block only once. If the batch does not fit in a block,
+	 * the objects are added one by one.
+	 */
+	public void addAll(T[] objects, long[] outIndices) throws StorageException {
+		final int n = objects.length;
+		if (n == 0) {
+			return;
+		}
+		final ResizeableFastByteArrayOutputStream out = getScratch();
+		final byte[] buffer = out.getByteArray();
+		long length = 0;
+		try {
+			int from = 0;
+			for (int i = 0; i < n; i++) {
+				deflater.deflate(objects[i], out);
+				// temporarily keep the end of each object in the buffer
+				outIndices[i] = out.getSize();
+				final int s = out.getSize() - from;
+				length += s % alignment == 0 ? s : s + alignment - (s % alignment);
+				from = out.getSize();
+			}
+		} catch (IOException e) {
+			throw new StorageException(e.getMessage());
+		} finally {
+			if (out.getByteArray() != buffer) {
+				BUFFERS.incrementAndGet(this);
+			}
+		}
+		if (length > Integer.MAX_VALUE - blockSize || (!spanning && length > blockSize)) {
+			for (int i = 0; i < n; i++) {
+				outIndices[i] = addToStorage(objects[i]);
+			}
+			return;
+		}
+		final TLAB tlab = allocation == Allocation.THREADLOCAL ? tlabs.get() : null;
+		final long startIndex = tlab != null ? reserveLocal((int) length, tlab) : allocate((int) length);
+		// the alignment of the individual objects is wasted
+		addWasted(length - out.getSize(), length, tlab);
+
+		final B block = getBlock((int) (startIndex / blockSize));
+		if (startIndex % blockSize + length > blockSize) {
+			getBlock((int) ((startIndex + length - 1) / blockSize));
+		}
+		final byte[] bytes = out.getByteArray();
+		if (allocation != Allocation.SYNCHRONIZED) {
+			// no monitor needed, nobody else writes in the reserved range
+			copyAll(bytes, startIndex, outIndices);
+		} else {
+			synchronized (block) {
+				copyAll(bytes, startIndex, outIndices);
+			}
+		}
+		if (bytes.length > Math.max(blockSize, BLOCKSIZE)) {
+			// do not keep very large buffers around
+			SCRATCH.remove();
+		}
+	}
+
+	/**
+	 * Copies the deflated objects in bytes into the store, aligning each
+	 * object. Initially, ends contains the end of each object in bytes,
+	 * afterwards it contains the index of each object in the store.
+	 * 
+	 * @param bytes
+	 * @param startIndex
+	 *            the index in the store of the first object
+	 * @param ends
+	 * @throws StorageException
+	 */
+	private void copyAll(byte[] bytes, long startIndex, long[] ends) throws StorageException {
+		long index = startIndex;
+		int from = 0;
+		for (int i = 0; i < ends.length; i++) {
+			final int end = (int) ends[i];
+			final int s = end - from;
+			copy(bytes, from, s, index);
+			ends[i] = index;
+			index += s % alignment == 0 ? s : s + alignment - (s % alignment);
+			from = end;
+		}
+	}
+
+	/**
+	 * Stores the object by reserving cnt bytes in the chunk of the current
+	 * thread and deflating the object directly into the block, after which the
+	 * reservation is trimmed.
+	 * 
+	 * @param object
+	 * @param cnt
+	 *            the maximum number of bytes of the deflated object
+	 * @param tlab
+	 *            the chunk of the current thread
+	 * @return
+	 * @throws StorageException
+	 */
+	private long addInPlace(T object, int cnt, TLAB tlab) throws StorageException {
+		final long startIndex = reserveLocal(cnt, tlab);
+		if (startIndex % blockSize + cnt > blockSize) {
+			// spanning mode, make sure all blocks in the reserved range exist
+			getBlock((int) ((startIndex + cnt - 1) / blockSize));
+		} else {
+			getBlock((int) (startIndex / blockSize));
+		}
+		final long written;
+		try {
+			// no monitor needed, nobody else writes in the reserved range
+			written = deflateInPlace(object, startIndex, startIndex + cnt);
+		} catch (IOException e) {
+			trim(startIndex, cnt, 0, tlab);
+			throw new StorageException(e.getMessage());
+		}
+		if (written > cnt) {
+			trim(startIndex, cnt, 0, tlab);
+			throw new StorageException("Deflater exceeded its maximum byte count.");
+		}
+		trim(startIndex, cnt, (int) written, tlab);
+		return startIndex;
+	}
+
+	/**
+	 * Stores the object by deflating it directly into the block at the end of
+	 * the store, of which at most cnt bytes may be written, after which the
+	 * size of the store is set to the end of the object. Everything happens
+	 * while holding the monitor of the store, hence no space is reserved that
+	 * would be wasted. If cnt bytes do not fit in the current block, while the
+	 * actual object might still fit in it, nothing is stored and -1 is
+	 * returned.
+	 * 
+	 * @param object
+	 * @param cnt
+	 *            the maximum number of bytes of the deflated object
+	 * @return
+	 * @throws StorageException
+	 */
+	private synchronized long addInPlaceSynchronized(T object, int cnt) throws StorageException {
+		final long startIndex = size;
+		if (!spanning && startIndex % blockSize != 0 && startIndex % blockSize + cnt > blockSize) {
+			return -1;
+		}
+		// the size is always aligned and, as the object fits, no tail of a
+		// block is wasted. Hence, only the alignment of the object is wasted.
+		final B block = getBlock((int) (startIndex / blockSize));
+		if (startIndex % blockSize + cnt > blockSize) {
+			// spanning mode, make sure all blocks in the reserved range exist
+			getBlock((int) ((startIndex + cnt - 1) / blockSize));
+		}
+		final long written;
+		try {
+			synchronized (block) {
+				written = deflateInPlace(object, startIndex, startIndex + cnt);
+			}
+		} catch (IOException e) {
+			throw new StorageException(e.getMessage());
+		}
+		if (written > cnt) {
+			throw new StorageException("Deflater exceeded its maximum byte count.");
+		}
+		final long length = written % alignment == 0 ? written : written + alignment - (written % alignment);
+		size = startIndex + length;
+		if (length > written) {
+			WASTED.addAndGet(this, length - written);
+		}
+		return startIndex;
+	}
+
+	/**
+	 * Reserves s bytes (plus alignment) in the store according to the
+	 * allocation mode and returns the index of the first reserved byte.
+	 * 
+	 * @param s
+	 * @return
+	 * @throws StorageException
+	 */
+	private long allocate(int s) throws StorageException {
+		switch (allocation) {
+			case CONCURRENT :
+				return reserve(s);
+			case THREADLOCAL :
+				return reserveLocal(s, tlabs.get());
+			default :
+				return reserveSynchronized(s);
+		}
+	}
+
+	/**
+	 * Shrinks the reservation of reserved bytes at startIndex in the chunk of
+	 * the current thread to s bytes. As space in the chunk is reserved in
+	 * order, the reservation is always the last one in the chunk, unless the
+	 * store was emptied in the meantime.
+	 * 
+	 * @param startIndex
+	 * @param reserved
+	 * @param s
+	 * @param tlab
+	 *            the chunk of the current thread
+	 */
+	private void trim(long startIndex, int reserved, int s, TLAB tlab) {
+		final long reservedLength = reserved % alignment == 0 ? reserved : reserved + alignment
+				- (reserved % alignment);
+		final long length = s % alignment == 0 ? s : s + alignment - (s % alignment);
+		if (tlab.epoch == epoch && tlab.top == startIndex + reservedLength) {
+			tlab.top = startIndex + length;
+			tlab.wasted += (length - s) - (reservedLength - reserved);
+		} else {
+			tlab.wasted += reserved - s;
+		}
+	}
+
+	/**
+	 * Adds w bytes of waste to the store or the chunk of the current thread,
+	 * depending on where the reservation of the given length was made.
+	 * 
+	 * @param w
+	 * @param reservedLength
+	 * @param tlab
+	 */
+	private void addWasted(long w, long reservedLength, TLAB tlab) {
+		if (allocation == Allocation.THREADLOCAL && reservedLength <= tlabSize) {
+			tlab.wasted += w;
+		} else {
+			WASTED.addAndGet(this, w);
+		}
+	}
+
+	/**
+	 * Reserves s bytes (plus alignment) in the store while holding the
+	 * monitor of the store and returns the index of the first reserved byte.
+	 * 
+	 * @param s
+	 * @return
+	 * @throws StorageException
+	 */
+	private synchronized long reserveSynchronized(int s) throws StorageException {
+		final long startIndex;
+		// in spanning mode, blocks are allocated when they are written
+		if (!spanning && (size + s) / blockSize >= blocks) {
+			if (blocks == store.length) {
+				if (blocks > Integer.MAX_VALUE / 2) {
+					throw new StorageException("Storage Full");
+				}
+				// double the storage.
+				B[] newStore = createStore(2 * blocks);
+				System.arraycopy(store, 0, newStore, 0, blocks);
+				store = newStore;
+
+			}
+			// we need to add a block
+			store[blocks] = allocateBlock(blocks);
+			// make sure we write the whole stream into one block
+			WASTED.addAndGet(this, ((long) blocks) * blockSize - size);
+			// there is a need for the two steps here to avoid the product
+			// to
+			// go beyond the range of integers and then be casted to long.
+			size = blocks;
+			size *= blockSize;
+			blocks++;
+		}
+
+		startIndex = size;
+
+		size += s;
+
+		// check the alignment
+		if (size % alignment != 0) {
+			long w = alignment - (size % alignment);
+			size += w;
+			WASTED.addAndGet(this, w);
+		}
+		return startIndex;
+	}
+
+	/**
+	 * Reserves s bytes (plus alignment) in the store without taking a lock and
+	 * returns the index of the first reserved byte. If the object does not fit
+	 * in the current block, the size is moved to the start of the next block
+	 * in the same compare-and-set.
+	 * 
+	 * @param s
+	 * @return
+	 * @throws StorageException
+	 */
+	private long reserve(int s) throws StorageException {
+		// the size is always aligned, hence it suffices to align the length
+		final long length = s % alignment == 0 ? s : s + alignment - (s % alignment);
+		long start, end, w;
+		do {
+			long current = size;
+			start = current;
+			w = length - s;
+			if (!spanning && start % blockSize + length > blockSize) {
+				// roll over to the next block, wasting the tail of this one
+				start = (start / blockSize + 1) * blockSize;
+				w += start - current;
+			}
+			end = start + length;
+			if (SIZE.compareAndSet(this, current, end)) {
+				break;
+			}
+		} while (true);
+		if (w > 0) {
+			WASTED.addAndGet(this, w);
+		}
+		return start;
+	}
+
+	/**
+	 * Returns true if cnt bytes can be reserved in the chunk of the current
+	 * thread without wasting the tail of the chunk, i.e. if cnt bytes fit in
+	 * the chunk or if the chunk is used up or invalid. Otherwise, it is better
+	 * to first deflate the object to learn its actual size.
+	 * 
+	 * @param cnt
+	 * @param tlab
+	 * @return
+	 */
+	private boolean fitsInChunk(int cnt, TLAB tlab) {
+		final long length = cnt % alignment == 0 ? cnt : cnt + alignment - (cnt % alignment);
+		return length <= tlabSize
+				&& (tlab.epoch != epoch || tlab.top + length <= tlab.end || tlab.top == tlab.end);
+	}
+
+	/**
+	 * Reserves s bytes (plus alignment) in the chunk of the current thread and
+	 * returns the index of the first reserved byte. If the chunk is full, the
+	 * tail is wasted and a new chunk is claimed. Objects larger than a chunk
+	 * are reserved directly in the store.
+	 * 
+	 * @param s
+	 * @param tlab
+	 *            the chunk of the current thread
+	 * @return
+	 * @throws StorageException
+	 */
+	private long reserveLocal(int s, TLAB tlab) throws StorageException {
+		final long length = s % alignment == 0 ? s : s + alignment - (s % alignment);
+		if (length > tlabSize) {
+			return reserve(s);
+		}
+		final int e = epoch;
+		if (tlab.epoch != e || tlab.top + length > tlab.end) {
+			if (tlab.epoch == e) {
+				// return the unused tail to the accounting
+				WASTED.addAndGet(this, tlab.end - tlab.top + tlab.wasted);
+			}
+			tlab.top = reserve(tlabSize);
+			tlab.end = tlab.top + tlabSize;
+			tlab.wasted = 0;
+			tlab.epoch = e;
+		}
+		final long start = tlab.top;
+		tlab.top += length;
+		tlab.wasted += length - s;
+		return start;
+	}
+
+	/**
+	 * Returns the block with the given index, allocating it (and all blocks
+	 * before it) if needed. Blocks are allocated only once per blockSize bytes,
+	 * hence the monitor is taken rarely and never while copying.
+	 * 
+	 * @param block
+	 * @return
+	 * @throws StorageException
+	 */
+	protected B getBlock(int block) throws StorageException {
+		B[] st = store;
+		if (block < st.length && st[block] != null) {
+			return st[block];
+		}
+		synchronized (this) {
+			while (blocks <= block) {
+				if (blocks == store.length) {
+					if (blocks > Integer.MAX_VALUE / 2) {
+						throw new StorageException("Storage Full");
+					}
+					B[] newStore = createStore(2 * blocks);
+					System.arraycopy(store, 0, newStore, 0, blocks);
+					store = newStore;
+				}
+				store[blocks] = allocateBlock(blocks);
+				blocks++;
+			}
+			return store[block];
+		}
+	}
+
+	/**
+	 * Returns the size of each block in this store
+	 * 
+	 * @return
+	 */
+	protected int getBlockSize() {
+		return blockSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedStore#getObject(long)
+	 */
+	public T getObject(long index) throws StorageException {
+		if (inflater == null) {
+			throw new StorageException("No inflater specified.");
+		}
+		try {
+			FastByteArrayInputStream stream = getStreamForObject(index);
+			synchronized (stream.getLock()) {
+				return inflater.inflate(stream);
+			}
+		} catch (IOException e) {
+			throw new StorageException(e.getMessage());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedStore#getSize()
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.processmining.framework.storage.CompressedStore#getWastedMemory()
+	 */
+	public long getWastedMemory() {
+		return wasted;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.processmining.framework.storage.CompressedStore#getUnusedMemory()
+	 */
+	public long getUnusedMemory() {
+		return (blockSize - size % blockSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedStore#getInflater()
+	 */
+	public Inflater<? extends T> getInflater() {
+		return inflater;
+	}
+
+	public int getAlignment() {
+		return alignment;
+	}
+
+	/**
+	 * Returns true if objects in this store may span multiple blocks
+	 * 
+	 * @return
+	 */
+	public boolean isSpanning() {
+		return spanning;
+	}
+
+	/**
+	 * Returns the allocation mode of this store
+	 * 
+	 * @return
+	 */
+	public Allocation getAllocation() {
+		return allocation;
+	}
+
+	@Override
+	public void removeAll() {
+		this.epoch++;
+		this.blocks = 0;
+		this.size = 0;
+		this.wasted = 0;
+		synchronized (this) {
+			this.store = createStore(8);
+		}
+	}
+
+	/**
+	 * Returns the number of times a scratch buffer for deflating an object was
+	 * allocated or grown while adding objects to this store. In the steady
+	 * state, this number no longer increases.
+	 * 
+	 * @return
+	 */
+	public long getBufferAllocations() {
+		return bufferAllocations;
+	}
+
+	public int getBlocksInUse() {
+		return blocks;
+	}
+
+	/**
+	 * Rewrites the objects at the given indices, which should be in ascending
+	 * order, into new blocks and releases all other objects. Afterwards,
+	 * outIndices[i] holds the new index of the object that was at indices[i].
+	 * Objects are copied by inflating and deflating them, hence the store
+	 * requires an inflater.
+	 * 
+	 * A block is released as soon as all objects in it have been copied, so
+	 * compaction needs little more memory than the objects that remain. If
+	 * compaction fails, the contents of the store are undefined. The store
+	 * should not be used by other threads while it is being compacted.
+	 * 
+	 * @param indices
+	 * @param outIndices
+	 * @throws StorageException
+	 */
+	public void compact(long[] indices, long[] outIndices) throws StorageException {
+		final AbstractCompressedStoreImpl<T, B> copy = createCopy();
+		final B[] old = store;
+		int released = 0;
+		for (int i = 0; i < indices.length; i++) {
+			assert i == 0 || indices[i - 1] < indices[i];
+			final int block = (int) (indices[i] / blockSize);
+			while (released < block) {
+				old[released++] = null;
+			}
+			outIndices[i] = copy.addToStorage(getObject(indices[i]));
+		}
+		adopt(copy);
+	}
+
+	/**
+	 * Replaces the contents of this store by those of the given copy, which
+	 * was created by createCopy. Subclasses that keep resources outside of
+	 * the blocks should take over those of the copy and release their own.
+	 * 
+	 * @param copy
+	 */
+	protected void adopt(AbstractCompressedStoreImpl<T, B> copy) {
+		this.epoch++;
+		synchronized (this) {
+			this.store = copy.store;
+			this.blocks = copy.blocks;
+			this.size = copy.size;
+			this.wasted = copy.wasted;
+		}
+	}
+
+}
@@ -3,15 +3,31 @@ package nl.tue.storage.impl;
 import nl.tue.storage.CompressedStore;
 import nl.tue.storage.EqualOperation;
 import nl.tue.storage.HashOperation;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
 
 class AlignedIntBackedHashSet<K> extends AbstractBackedHashSet<K> {
 
 	private int[] pointerArray;
+	// the table that is being migrated during an incremental resize
+	private int[] oldPointerArray;
 	private final int alignment;
+	// the value of a slot from which a pointer was removed
+	private static final int REMOVEDPOINTER = -1;
 
 	public AlignedIntBackedHashSet(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs,
 			int initialCapacity) {
-		super(store, eq, hs, initialCapacity);
+		this(store, eq, hs, initialCapacity, ProbeFilter.NONE);
+	}
+
+	public AlignedIntBackedHashSet(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs,
+			int initialCapacity, ProbeFilter filter) {
+		this(store, eq, hs, initialCapacity, filter, Layout.DOUBLEHASHING);
+	}
+
+	public AlignedIntBackedHashSet(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs,
+			int initialCapacity, ProbeFilter filter, Layout layout) {
+		super(store, eq, hs, initialCapacity, filter, layout);
 		this.alignment = store.getAlignment();
 
 	}
@@ -33,20 +49,25 @@ class AlignedIntBackedHashSet<K> extends AbstractBackedHashSet<K> {
 	}
 
 	protected void rehash(int newCapacity) {
+		newCapacity = tableCapacity(newCapacity);
+		if (rehashIncrementally(newCapacity) || rehashInParallel(newCapacity)) {
+			return;
+		}
 		int oldCapacity = pointerArray.length;
 
 		int oldSet[] = pointerArray;
 		// byte oldStates[] = _states;
 
 		pointerArray = new int[newCapacity];
+		int oldHashes[] = rehashFilter(newCapacity);
 		// _states = new byte[newCapacity];
 
 		for (int i = oldCapacity; i-- > 0;) {
 			// if (oldStates[i] == FULL) {
-			if (oldSet[i] != 0) {
+			if (oldSet[i] != 0 && oldSet[i] != REMOVEDPOINTER) {
 				long o = int2long(oldSet[i]);
 				try {
-					insertKey(null, o, true);
+					reinsert(o, oldHashes, i);
 				} catch (Exception e) {
 					throw new RuntimeException("error while rehashing: C_old:" + oldCapacity + " C_new:" + newCapacity
 							+ " o:" + o, e);
@@ -61,17 +82,44 @@ class AlignedIntBackedHashSet<K> extends AbstractBackedHashSet<K> {
 	}
 
 	protected long get(int i) {
-		return int2long(pointerArray[i]);
+		final int p = pointerArray[i];
+		return p == REMOVEDPOINTER ? REMOVED : int2long(p);
 	}
 
 	protected void put(int i, long l) {
 		pointerArray[i] = long2int(l);
 	}
 
+	protected void swapTables(int newCapacity) {
+		oldPointerArray = pointerArray;
+		pointerArray = new int[newCapacity];
+	}
+
+	protected long getOld(int i) {
+		final int p = oldPointerArray[i];
+		return p == REMOVEDPOINTER ? REMOVED : int2long(p);
+	}
+
+	protected int oldLength() {
+		return oldPointerArray == null ? 0 : oldPointerArray.length;
+	}
+
+	protected void dropOldTable() {
+		oldPointerArray = null;
+	}
+
 	protected void putEmpty(int i) {
 		pointerArray[i] = 0;
 	}
 
+	protected void putRemoved(int i) {
+		pointerArray[i] = REMOVEDPOINTER;
+	}
+
+	protected void putRemovedOld(int i) {
+		oldPointerArray[i] = REMOVEDPOINTER;
+	}
+
 	protected boolean isEmpty(int i) {
 		return pointerArray[i] == 0;
 	}
@@ -123,19 +171,20 @@ class AlignedIntBackedHashSet<K> extends AbstractBackedHashSet<K> {
 		 */
 		l--;
 		l /= alignment;
-		if (l >= 0xffffffffL) {
+		// the largest unsigned int marks a removed pointer
+		if (l >= 0xfffffffeL) {
 			throw new OutOfMemoryError("[AlignedIntBackedHashSet] Attempt to store too many states. Trying to store index: " + (l*alignment));
 		}
 		return (int)((l+1) & 0xffffffffL);		
 	}
 
 	public long getMemory() {
-		return 4 * pointerArray.length;
+		return 4 * (pointerArray.length + oldLength()) + getFilterMemory();
 	}
 
 	@Override
 	protected boolean impliesEmpty(int i, long atIndex) {
-		return atIndex <= 0;
+		return atIndex <= 0 && atIndex != REMOVED;
 	}
 
 }
@@ -0,0 +1,94 @@
+package nl.tue.storage.impl;
+
+/**
+ * Bloom filter on non-negative hash codes, used by the backed hash sets to
+ * answer lookups of objects that are definitely not in the set without
+ * probing the table or accessing the backing store. The filter is blocked:
+ * all bits of a hash code are set in a single 64-bit word, hence a lookup
+ * reads one word. This gives a somewhat higher false positive rate than a
+ * standard Bloom filter of the same size.
+ *
+ * Objects cannot be removed from the filter, so removed objects remain
+ * (false) positives until the filter is rebuilt.
+ */
+final class BlockedBloomFilter {
+
+	/**
+	 * the number of bits set per hash code
+	 */
+	public static final int HASHES = 4;
+
+	private final long[] words;
+
+	private final int mask;
+
+	/**
+	 * Instantiates a filter of at least the given number of bits, rounded up
+	 * to a power of two number of words.
+	 *
+	 * @param bits
+	 */
+	public BlockedBloomFilter(long bits) {
+		long n = Math.max(1, (bits + 63) >>> 6);
+		n = Math.min(n, 1 << 30);
+		int length = Integer.highestOneBit((int) n);
+		if (length < n) {
+			length <<= 1;
+		}
+		this.words = new long[length];
+		this.mask = length - 1;
+	}
+
+	/**
+	 * Returns the mixed hash code, of which the high bits select the word and
+	 * the middle bits select the bits in that word.
+	 */
+	private static long mix(int hash) {
+		return hash * 0x9E3779B97F4A7C15L;
+	}
+
+	private static long pattern(long h) {
+		return (1L << (h >>> 8)) | (1L << (h >>> 14)) | (1L << (h >>> 20)) | (1L << (h >>> 26));
+	}
+
+	private int word(long h) {
+		return (int) (h >>> 40) & mask;
+	}
+
+	public void add(int hash) {
+		final long h = mix(hash);
+		words[word(h)] |= pattern(h);
+	}
+
+	/**
+	 * Returns false if no object with the given hash code was added to the
+	 * filter.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public boolean mightContain(int hash) {
+		final long h = mix(hash);
+		final long p = pattern(h);
+		return (words[word(h)] & p) == p;
+	}
+
+	/**
+	 * Estimates the probability that mightContain returns true for a hash
+	 * code that was not added, from the fraction of bits that is set in each
+	 * word. This method counts all bits, hence it should not be called often.
+	 *
+	 * @return
+	 */
+	public double getEstimatedFalsePositiveRate() {
+		double rate = 0;
+		for (int i = 0; i < words.length; i++) {
+			rate += Math.pow(Long.bitCount(words[i]) / 64.0, HASHES);
+		}
+		return rate / words.length;
+	}
+
+	public long getMemory() {
+		return 16 + 4 + 24 + 8L * words.length;
+	}
+}
@@ -0,0 +1,70 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+
+/**
+ * SkippableOutputStream that writes into a byte array, but never beyond the
+ * given limit. Used to deflate objects directly into a block of a store, where
+ * writing beyond the reserved range would overwrite other objects.
+ */
+public class BoundedSkippableOutputStream extends SkippableOutputStream {
+
+	private final byte[] array;
+	private final int start;
+	private final int limit;
+
+	/**
+	 * 
+	 * @param array
+	 * @param pos
+	 *            the first index to write to
+	 * @param limit
+	 *            the last index that can be written to (exclusive)
+	 */
+	public BoundedSkippableOutputStream(byte[] array, int pos, int limit) {
+		super(pos);
+		this.array = array;
+		this.start = pos;
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (pos >= limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		array[pos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		if (pos + len > limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		System.arraycopy(b, off, array, pos, len);
+		pos += len;
+	}
+
+	@Override
+	public void write(byte b[]) throws IOException {
+		if (pos + b.length > limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		System.arraycopy(b, 0, array, pos, b.length);
+		pos += b.length;
+	}
+
+	/**
+	 * Returns the number of bytes written (or skipped) so far.
+	 * 
+	 * @return
+	 */
+	public int getSize() {
+		return pos - start;
+	}
+
+	@Override
+	public Object getLock() {
+		return array;
+	}
+}
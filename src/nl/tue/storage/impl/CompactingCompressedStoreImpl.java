@@ -0,0 +1,433 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import nl.tue.storage.Deflater;
+import nl.tue.storage.FastByteArrayInputStream;
+import nl.tue.storage.Inflater;
+import nl.tue.storage.impl.CompressedStoreImpl.Allocation;
+
+/**
+ * CompressedStore that keeps its blocks on the Java heap, but compresses cold
+ * blocks. A background compactor thread regularly checks the number of
+ * resident (i.e. uncompressed) blocks. If there are more than the given
+ * maximum, the least recently used blocks are compressed with
+ * java.util.zip.Deflater and their uncompressed arrays are released. When an
+ * object in a compressed block is read or written, the block is decompressed
+ * and becomes resident again until the compactor evicts it once more. The
+ * compressed copy of a block is kept as long as the block is not written to,
+ * so evicting a block that was only read does not compress it again.
+ *
+ * The last block is never compressed, as objects are still added to it.
+ * Space for objects is reserved as in the CompressedStoreImpl, according to
+ * the allocation mode, and objects never cross block boundaries. However,
+ * objects are always written into a block while holding its monitor, as the
+ * block may have to be decompressed first.
+ *
+ * Every block has its own monitor, which is used by readers and writers of
+ * objects in that block, as well as by the compactor. Hence, streams obtained
+ * from this store should be used while holding their lock, as for the other
+ * stores. The recency of blocks is tracked without synchronization, hence it
+ * is approximate.
+ *
+ * A CompressedHashSet can compact this store like a CompressedStoreImpl, in
+ * which case the remaining objects are copied into new, resident blocks.
+ *
+ * @param <T>
+ */
+public class CompactingCompressedStoreImpl<T> extends AbstractCompressedStoreImpl<T, CompactingCompressedStoreImpl.Block> {
+
+	/**
+	 * default maximum number of resident blocks
+	 */
+	public static final int RESIDENTBLOCKS = 64;
+
+	/**
+	 * default time between two runs of the compactor, in milliseconds
+	 */
+	public static final long INTERVAL = 1000;
+
+	/**
+	 * A block of the store. The block itself is the monitor for reading and
+	 * writing its contents.
+	 */
+	static final class Block {
+		/**
+		 * the uncompressed contents, null if the block is not resident
+		 */
+		volatile byte[] data;
+		/**
+		 * the compressed contents, null if the block was never compressed or
+		 * was written to since
+		 */
+		byte[] compressed;
+		/**
+		 * the moment the block was last used
+		 */
+		int lastUsed;
+	}
+
+	/**
+	 * Runs the compaction of a store at a fixed interval, until the store is
+	 * garbage collected.
+	 */
+	private static final class Compactor implements Runnable {
+
+		private final WeakReference<CompactingCompressedStoreImpl<?>> store;
+		private final long interval;
+
+		public Compactor(CompactingCompressedStoreImpl<?> store, long interval) {
+			this.store = new WeakReference<CompactingCompressedStoreImpl<?>>(store);
+			this.interval = interval;
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				CompactingCompressedStoreImpl<?> s = store.get();
+				if (s == null) {
+					return;
+				}
+				s.compact();
+				s = null;
+			}
+		}
+	}
+
+	/**
+	 * maximum number of resident blocks after compaction
+	 */
+	private final int residentBlocks;
+
+	/**
+	 * the interval of the compactor, 0 if there is no compactor thread
+	 */
+	private final long interval;
+
+	/**
+	 * the compactor thread, started when the first block is sealed
+	 */
+	private Thread compactor;
+
+	/**
+	 * clock used to track the recency of blocks
+	 */
+	private int clock;
+
+	public CompactingCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize) {
+		this(alignment, deflater, inflater, blockSize, RESIDENTBLOCKS, INTERVAL);
+	}
+
+	public CompactingCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, int residentBlocks, long interval) {
+		this(alignment, deflater, inflater, blockSize, Allocation.SYNCHRONIZED, residentBlocks, interval);
+	}
+
+	/**
+	 *
+	 * @param alignment
+	 * @param deflater
+	 * @param inflater
+	 * @param blockSize
+	 * @param allocation
+	 * @param residentBlocks
+	 *            the maximum number of resident blocks after compaction
+	 * @param interval
+	 *            the time between two runs of the compactor, in
+	 *            milliseconds. If 0, no compactor thread is started and
+	 *            compact() should be called explicitly.
+	 */
+	public CompactingCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, Allocation allocation, int residentBlocks, long interval) {
+		super(alignment, deflater, inflater, blockSize, allocation, false);
+		this.residentBlocks = Math.max(1, residentBlocks);
+		this.interval = interval;
+	}
+
+	protected Block[] createStore(int length) {
+		return new Block[length];
+	}
+
+	protected Block allocateBlock(int block) {
+		Block b = new Block();
+		b.data = new byte[blockSize];
+		if (block > 0 && interval > 0 && compactor == null) {
+			// the first block is sealed
+			compactor = new Thread(new Compactor(this, interval), "Block compactor");
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+		return b;
+	}
+
+	/**
+	 * Creates a store without a compactor thread, of which the blocks are
+	 * adopted by this store after compaction.
+	 */
+	protected CompactingCompressedStoreImpl<T> createCopy() {
+		return new CompactingCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize,
+				Allocation.SYNCHRONIZED, residentBlocks, 0);
+	}
+
+	/**
+	 * Copies the bytes into the block while holding its monitor, as the
+	 * block may have to be decompressed first, regardless of the allocation
+	 * mode.
+	 */
+	protected void copy(byte[] bytes, int off, int len, long index) {
+		final Block block = store[(int) (index / blockSize)];
+		synchronized (block) {
+			System.arraycopy(bytes, off, resident(block), (int) (index % blockSize), len);
+			block.compressed = null;
+		}
+	}
+
+	/**
+	 * Deflates the object into the block while holding its monitor, as the
+	 * block may have to be decompressed first, regardless of the allocation
+	 * mode.
+	 */
+	protected long deflateInPlace(T object, long startIndex, long endIndex) throws IOException {
+		final Block block = store[(int) (startIndex / blockSize)];
+		final int blockIndex = (int) (startIndex % blockSize);
+		synchronized (block) {
+			final BoundedSkippableOutputStream out = new BoundedSkippableOutputStream(resident(block), blockIndex,
+					(int) (blockIndex + endIndex - startIndex));
+			block.compressed = null;
+			deflater.deflate(object, out);
+			return out.getSize();
+		}
+	}
+
+	/**
+	 * Returns the uncompressed contents of the block, decompressing it if
+	 * needed. Should be called while holding the monitor of the block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private byte[] resident(Block block) {
+		block.lastUsed = clock++;
+		byte[] data = block.data;
+		if (data == null) {
+			java.util.zip.Inflater zip = new java.util.zip.Inflater();
+			try {
+				data = new byte[blockSize];
+				zip.setInput(block.compressed);
+				int n = 0;
+				while (n < blockSize && !zip.finished()) {
+					n += zip.inflate(data, n, blockSize - n);
+				}
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Compressed block is corrupt", e);
+			} finally {
+				zip.end();
+			}
+			block.data = data;
+		}
+		return data;
+	}
+
+	/**
+	 * Compresses the least recently used blocks, such that at most the
+	 * maximum number of blocks remains resident. This method is called by the
+	 * compactor thread, but can also be called directly.
+	 *
+	 * @return the number of blocks that were evicted
+	 */
+	public int compact() {
+		final Block[] st;
+		final int n;
+		synchronized (this) {
+			st = store;
+			n = blocks;
+		}
+		// the last block is never compressed.
+		int count = 0;
+		long[] order = new long[Math.max(0, n - 1)];
+		for (int b = 0; b < n - 1; b++) {
+			if (st[b].data != null) {
+				// sort on recency first, block number second
+				order[count] = (((long) st[b].lastUsed) << 32) | b;
+				count++;
+			}
+		}
+		int evict = count + 1 - residentBlocks;
+		if (evict <= 0) {
+			return 0;
+		}
+		order = Arrays.copyOf(order, count);
+		Arrays.sort(order);
+		java.util.zip.Deflater zip = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED);
+		byte[] buffer = new byte[blockSize + blockSize / 16 + 64];
+		try {
+			for (int i = 0; i < evict; i++) {
+				Block block = st[(int) (order[i] & 0xffffffffL)];
+				synchronized (block) {
+					byte[] data = block.data;
+					if (data == null) {
+						continue;
+					}
+					if (block.compressed == null) {
+						zip.reset();
+						zip.setInput(data);
+						zip.finish();
+						int l = 0;
+						while (!zip.finished()) {
+							if (l == buffer.length) {
+								buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+							}
+							l += zip.deflate(buffer, l, buffer.length - l);
+						}
+						block.compressed = Arrays.copyOf(buffer, l);
+					}
+					block.data = null;
+				}
+			}
+		} finally {
+			zip.end();
+		}
+		return evict;
+	}
+
+	/**
+	 * FastByteArrayInputStream on a block, of which the lock is the block
+	 * itself. The block is made resident on the first read, while holding the
+	 * lock, hence the stream never reads an array that was already evicted
+	 * when the read started.
+	 */
+	private final class BlockInputStream extends FastByteArrayInputStream {
+
+		private final Block block;
+		private byte[] data;
+
+		public BlockInputStream(Block block, int pos, int count) {
+			super(null, pos, count);
+			this.block = block;
+		}
+
+		private byte[] data() {
+			if (data == null) {
+				synchronized (block) {
+					data = resident(block);
+				}
+			}
+			return data;
+		}
+
+		public int read() {
+			assert pos < count;
+			return data()[pos++] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			assert (pos + len <= count);
+			System.arraycopy(data(), pos, b, off, len);
+			pos += len;
+			return len;
+		}
+
+		public Object getLock() {
+			return block;
+		}
+	}
+
+	/**
+	 * SkippableOutputStream into a block, which makes the block resident on
+	 * every write, i.e. writing is only safe while holding the lock.
+	 */
+	private final class BlockOutputStream extends SkippableOutputStream {
+
+		private final Block block;
+
+		public BlockOutputStream(Block block, int pos) {
+			super(pos);
+			this.block = block;
+		}
+
+		private byte[] data() {
+			byte[] data = resident(block);
+			block.compressed = null;
+			return data;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			data()[pos++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte b[], int off, int len) throws IOException {
+			System.arraycopy(b, off, data(), pos, len);
+			pos += len;
+		}
+
+		@Override
+		public void write(byte b[]) {
+			System.arraycopy(b, 0, data(), pos, b.length);
+			pos += b.length;
+		}
+
+		@Override
+		public Object getLock() {
+			return block;
+		}
+	}
+
+	public FastByteArrayInputStream getStreamForObject(long index) {
+		final int blockIndex = (int) (index % blockSize);
+		return new BlockInputStream(store[(int) (index / blockSize)], blockIndex, blockSize - blockIndex);
+	}
+
+	public SkippableOutputStream getOutputStreamForObject(long index) {
+		return new BlockOutputStream(store[(int) (index / blockSize)], (int) (index % blockSize));
+	}
+
+	/**
+	 * Returns the memory used by this storage, i.e. the resident blocks and
+	 * the compressed copies.
+	 */
+	public long getMemory() {
+		long memory = 8 + 4 + 4 + 8 + 8 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 4 + 24;
+		final Block[] st = store;
+		final int n = blocks;
+		for (int b = 0; b < n; b++) {
+			memory += 40;
+			byte[] data = st[b].data;
+			if (data != null) {
+				memory += 24 + blockSize;
+			}
+			byte[] compressed = st[b].compressed;
+			if (compressed != null) {
+				memory += 24 + compressed.length;
+			}
+		}
+		return memory;
+	}
+
+	/**
+	 * Returns the number of blocks that are currently not compressed
+	 *
+	 * @return
+	 */
+	public int getResidentBlocks() {
+		int resident = 0;
+		final Block[] st = store;
+		final int n = blocks;
+		for (int b = 0; b < n; b++) {
+			if (st[b].data != null) {
+				resident++;
+			}
+		}
+		return resident;
+	}
+
+}
@@ -1,5 +1,7 @@
 package nl.tue.storage.impl;
 
+import gnu.trove.map.TLongLongMap;
+
 import java.io.IOException;
 
 import nl.tue.storage.CompressedHashSet;
@@ -8,6 +10,7 @@ import nl.tue.storage.Deflater;
 import nl.tue.storage.EqualOperation;
 import nl.tue.storage.HashOperation;
 import nl.tue.storage.Inflater;
+import nl.tue.storage.ProbeOperation;
 import nl.tue.storage.StorageException;
 
 public abstract class CompressedStoreHashSetImpl<K> implements
@@ -66,6 +69,54 @@ public abstract class CompressedStoreHashSetImpl<K> implements
 					alignment, deflater, inflater, blockSize), eq, hs,
 					initialCapacity));
 		}
+
+		/**
+		 * Instantiates the set on the given (empty) store. The alignment of the
+		 * pointers is taken from the store.
+		 * 
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 */
+		public IntCustomAlignment(CompressedStore<K> store,
+				EqualOperation<K> eq, HashOperation<K> hs, int initialCapacity) {
+			this(store, eq, hs, initialCapacity, ProbeFilter.NONE);
+		}
+
+		/**
+		 * Instantiates the set on the given (empty) store, using the given
+		 * filter to avoid accessing the store.
+		 * 
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 * @param filter
+		 */
+		public IntCustomAlignment(CompressedStore<K> store,
+				EqualOperation<K> eq, HashOperation<K> hs,
+				int initialCapacity, ProbeFilter filter) {
+			this(store, eq, hs, initialCapacity, filter, Layout.DOUBLEHASHING);
+		}
+
+		/**
+		 * Instantiates the set on the given (empty) store, using the given
+		 * filter and table layout.
+		 * 
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 * @param filter
+		 * @param layout
+		 */
+		public IntCustomAlignment(CompressedStore<K> store,
+				EqualOperation<K> eq, HashOperation<K> hs,
+				int initialCapacity, ProbeFilter filter, Layout layout) {
+			super(new AlignedIntBackedHashSet<K>(store, eq, hs,
+					initialCapacity, filter, layout));
+		}
 	}
 
 	public static final class Int32G<K> extends CompressedStoreHashSetImpl<K> {
@@ -259,6 +310,91 @@ public abstract class CompressedStoreHashSetImpl<K> implements
 			super(new LongBackedHashSet<K>(new CompressedStoreImpl<K>(deflater,
 					inflater, blockSize), eq, hs, initialCapacity));
 		}
+
+		/**
+		 * Instantiates the set on the given (empty) store.
+		 * 
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 */
+		public Long(CompressedStore<K> store, EqualOperation<K> eq,
+				HashOperation<K> hs, int initialCapacity) {
+			this(store, eq, hs, initialCapacity, ProbeFilter.NONE);
+		}
+
+		/**
+		 * Instantiates the set on the given (empty) store, using the given
+		 * filter to avoid accessing the store.
+		 * 
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 * @param filter
+		 */
+		public Long(CompressedStore<K> store, EqualOperation<K> eq,
+				HashOperation<K> hs, int initialCapacity,
+				ProbeFilter filter) {
+			this(store, eq, hs, initialCapacity, filter, Layout.DOUBLEHASHING);
+		}
+
+		/**
+		 * Instantiates the set on the given (empty) store, using the given
+		 * filter and table layout.
+		 * 
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 * @param filter
+		 * @param layout
+		 */
+		public Long(CompressedStore<K> store, EqualOperation<K> eq,
+				HashOperation<K> hs, int initialCapacity,
+				ProbeFilter filter, Layout layout) {
+			super(new LongBackedHashSet<K>(store, eq, hs, initialCapacity,
+					filter, layout));
+		}
+	}
+
+	/**
+	 * Determines what a set keeps per slot, to avoid comparing a value to a
+	 * stored object (which requires access to the backing store) if they
+	 * cannot be equal.
+	 */
+	public static enum ProbeFilter {
+		/**
+		 * nothing is kept, each object on the probe path is compared.
+		 */
+		NONE,
+		/**
+		 * 16 bits of the hash code are kept (2 bytes per slot).
+		 */
+		FINGERPRINT,
+		/**
+		 * the hash code is kept (4 bytes per slot), which also allows for
+		 * rehashing without accessing the backing store.
+		 */
+		HASHCODE
+	}
+
+	/**
+	 * Determines the capacity of the table of a set and the sequence of slots
+	 * that is probed for an object.
+	 */
+	public static enum Layout {
+		/**
+		 * the capacity is prime and the distance between probed slots depends
+		 * on the hash code (double hashing).
+		 */
+		DOUBLEHASHING,
+		/**
+		 * the capacity is a power of two and adjacent slots are probed (linear
+		 * probing), hence a probe sequence mostly stays within a cache line.
+		 */
+		LINEAR
 	}
 
 	public static final class Result<K> {
@@ -282,17 +418,41 @@ public abstract class CompressedStoreHashSetImpl<K> implements
 	 */
 	public Result<K> add(K val) throws StorageException {
 		Result<K> result = new Result<K>();
-		long index;
+		long index = addOrGet(val);
+		result.isNew = index >= 0;
+		result.index = result.isNew ? index : -(index + 1);
+
+		return result; // yes, we added something
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedHashSet#addOrGet(K)
+	 */
+	public long addOrGet(K val) throws StorageException {
 		try {
-			index = backingSet.checkForAdd(val, true);
+			return backingSet.checkForAdd(val, true);
 		} catch (IOException e) {
 			throw new StorageException("Error while reading from storage: "
 					+ e.getMessage());
 		}
-		result.isNew = index >= 0;
-		result.index = result.isNew ? index : -(index + 1);
+	}
 
-		return result; // yes, we added something
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedHashSet#add(K[],
+	 * long[], boolean[])
+	 */
+	public int add(K[] vals, long[] outIndices, boolean[] isNew)
+			throws StorageException {
+		try {
+			return backingSet.checkForAddAll(vals, outIndices, isNew);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: "
+					+ e.getMessage());
+		}
 	}
 
 	/**
@@ -318,6 +478,23 @@ public abstract class CompressedStoreHashSetImpl<K> implements
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedHashSet#contains(P,
+	 * ProbeOperation)
+	 */
+	public <P> long contains(P probe, ProbeOperation<P, K> op)
+			throws StorageException {
+		try {
+			return backingSet.checkForProbe(probe, op,
+					op.getProbeHashCode(probe) & 0x7fffffff);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: "
+					+ e.getMessage());
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -353,14 +530,117 @@ public abstract class CompressedStoreHashSetImpl<K> implements
 	 * 
 	 * @see org.processmining.framework.storage.CompressedHashSet#size()
 	 */
-	public int size() {
+	public long size() {
 		return backingSet.size();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.processmining.framework.storage.CompressedHashSet#remove(K)
+	 */
+	public long remove(K val) throws StorageException {
+		try {
+			return backingSet.remove(val);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * compacts the backing store, which should be a CompressedStoreImpl or
+	 * DirectCompressedStoreImpl, and rebuilds the set. Compaction is only worthwhile after many objects
+	 * have been removed, as it inflates and deflates all remaining objects.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TLongLongMap compact() throws StorageException {
+		return AbstractBackedHashSet.compact(backingSet.getStore(),
+				new AbstractBackedHashSet[] { backingSet });
+	}
+
 	/**
 	 * clears the storage space and removes all elements in the backing set.
 	 */
 	public void removeAll() {
 		backingSet.removeAll();
 	}
+
+	/**
+	 * Enables or disables incremental resizing of the set. If enabled, growing
+	 * the set does not reinsert all objects at once, but spreads this work
+	 * over the subsequent additions.
+	 * 
+	 * @param incremental
+	 */
+	public void setIncrementalRehash(boolean incremental) {
+		backingSet.setIncrementalRehash(incremental);
+	}
+
+	/**
+	 * Enables or disables parallel rehashing of the set. If enabled, a large
+	 * set is rehashed by the threads of a fork/join pool when it grows.
+	 * 
+	 * @param parallel
+	 */
+	public void setParallelRehash(boolean parallel) {
+		backingSet.setParallelRehash(parallel);
+	}
+
+	/**
+	 * Allows calls to contains to run concurrently with each other, for
+	 * example under the read lock of a ReentrantReadWriteLock, of which the
+	 * write lock guards the additions and removals. The set itself is not
+	 * changed by lookups, but the counters of avoided equality checks and
+	 * Bloom filter outcomes are, hence these are then counted atomically.
+	 * Without it, concurrent lookups may lose counts.
+	 * 
+	 * @param concurrent
+	 */
+	public void setConcurrentLookups(boolean concurrent) {
+		backingSet.setConcurrentLookups(concurrent);
+	}
+
+	/**
+	 * Returns the number of times a value was not compared to a stored object,
+	 * because the probe filter showed that they differ.
+	 * 
+	 * @return
+	 */
+	public long getAvoidedEqualityChecks() {
+		return backingSet.getAvoidedEqualityChecks();
+	}
+
+	/**
+	 * Enables a Bloom filter in front of the table with the given number of
+	 * bits per object, or disables it if bits is 0. The filter answers most
+	 * calls to contains for objects that are not in the set without probing
+	 * the table or accessing the backing store.
+	 * 
+	 * @param bits
+	 */
+	public void setBloomFilter(int bits) {
+		backingSet.setBloomFilter(bits);
+	}
+
+	/**
+	 * Returns the fraction of the calls to contains for objects that are not
+	 * in the set that passed the Bloom filter, or NaN if there were none.
+	 * 
+	 * @return
+	 */
+	public double getBloomFalsePositiveRate() {
+		long fp = backingSet.getBloomFalsePositives();
+		return fp / (double) (fp + backingSet.getBloomNegatives());
+	}
+
+	/**
+	 * Estimates the false positive rate of the Bloom filter from its current
+	 * contents, or returns 1 if there is no Bloom filter.
+	 * 
+	 * @return
+	 */
+	public double getEstimatedBloomFalsePositiveRate() {
+		return backingSet.getEstimatedBloomFalsePositiveRate();
+	}
 }
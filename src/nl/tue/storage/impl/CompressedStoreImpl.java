@@ -2,58 +2,44 @@ package nl.tue.storage.impl;
 
 import java.io.IOException;
 
-import nl.tue.storage.CompressedStore;
 import nl.tue.storage.Deflater;
+import nl.tue.storage.FastBlockArrayInputStream;
 import nl.tue.storage.FastByteArrayInputStream;
-import nl.tue.storage.FastByteArrayOutputStream;
 import nl.tue.storage.Inflater;
-import nl.tue.storage.ResizeableFastByteArrayOutputStream;
 import nl.tue.storage.StorageException;
 
-public class CompressedStoreImpl<T> implements CompressedStore<T> {
-
-	private static final int DEFAULTALIGNMENT = 1;
-
-	/**
-	 * internal blocksize
-	 */
-	private final int blockSize;
-
-	/**
-	 * The actual store in which bytes are stored.
-	 */
-	private byte[][] store;
-
-	/**
-	 * current size of the storage, also the first index in which I can store
-	 */
-	private volatile long size;
-
-	/**
-	 * current number of blocks
-	 */
-	private int blocks;
-
-	/**
-	 * current number of wasted bytes
-	 */
-	private long wasted;
-
-	/**
-	 * deflater used to deflate an object into a byte array
-	 * 
-	 */
-	private final Deflater<? super T> deflater;
+/**
+ * CompressedStore that keeps its blocks on the Java heap. See
+ * AbstractCompressedStoreImpl for the allocation modes.
+ * 
+ * In spanning mode, objects that span multiple blocks are read back through a
+ * FastBlockArrayInputStream.
+ * 
+ * @param <T>
+ */
+public class CompressedStoreImpl<T> extends AbstractCompressedStoreImpl<T, byte[]> {
 
 	/**
-	 * inflater used to inflate the byte array to an object, if provided
-	 */
-	private final Inflater<? extends T> inflater;
+	 * The way in which space for new objects is reserved in the store.
+	 */
+	public static enum Allocation {
+		/**
+		 * Space is reserved while holding the monitor of the store.
+		 */
+		SYNCHRONIZED,
+		/**
+		 * Space is reserved lock-free, by atomically bumping the size of the
+		 * store.
+		 */
+		CONCURRENT,
+		/**
+		 * Space is reserved in a thread-local chunk of the store, which is
+		 * claimed lock-free.
+		 */
+		THREADLOCAL
+	}
 
-	/**
-	 * byte alignment
-	 */
-	private final int alignment;
+	private static final int DEFAULTALIGNMENT = 1;
 
 	public CompressedStoreImpl(Deflater<? super T> deflater) {
 		this(deflater, null);
@@ -77,103 +63,68 @@ public class CompressedStoreImpl<T> implements CompressedStore<T> {
 
 	public CompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
 			int blockSize) {
-		this.alignment = alignment;
-		this.deflater = deflater;
-		this.inflater = inflater;
-		// Blocksize needs to be an exact multiple of alignment, with a minimum of 8
-		this.blockSize = blockSize / alignment >= 8 ? alignment * (blockSize / alignment) : 8 * alignment;
-		removeAll();
+		this(alignment, deflater, inflater, blockSize, Allocation.SYNCHRONIZED);
+	}
 
+	public CompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, Allocation allocation) {
+		this(alignment, deflater, inflater, blockSize, allocation, false);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
 	 * 
-	 * @see org.processmining.framework.storage.CompressedStore#addToStorage(T)
+	 * @param alignment
+	 * @param deflater
+	 * @param inflater
+	 * @param blockSize
+	 * @param allocation
+	 * @param spanning
+	 *            if true, objects may span multiple blocks
 	 */
-	public long addToStorage(T object) throws StorageException {
-
-		final long startIndex;
-		final int s;
-		final int cnt = deflater.getMaxByteCount();
-		final FastByteArrayOutputStream out;
-		if (cnt < 0) {
-			out = new ResizeableFastByteArrayOutputStream(256);
-		} else {
-			out = new FastByteArrayOutputStream(cnt);
-		}
-		// here, synchronization on this is needed to obtain the startindex
-		// for
-		// writing and setting the new size, before asynchronously copying
-		// in
-		// the
-		// contents. The blocking while reading the stream is needed to make
-		// sure not to threads are storing the same object in parallel,
-		// leading
-		// to two instances of an object in the store.
-		//
-		try {
-			deflater.deflate(object, out);
-		} catch (IOException e) {
-			throw new StorageException(e.getMessage());
-		}
-		if (out.getSize() > blockSize) {
-			// throw an exception, as we cannot store this object into
-			// a single array.
-			throw new StorageException("Object too large to be stored, increase the "
-					+ "blocksize of the storage and try again");
-		}
-		s = out.getSize();
-		int blockIndex, block;
-		synchronized (this) {
-			if ((size + s) / blockSize >= blocks) {
-				if (blocks == store.length) {
-					if (blocks > Integer.MAX_VALUE / 2) {
-						throw new StorageException("Storage Full");
-					}
-					// double the storage.
-					// byte[][] oldStore = store;
-					// store = new byte[2 * blocks][];
-					// System.arraycopy(oldStore, 0, store, 0, blocks);
-					//
-					byte[][] newStore = new byte[2 * blocks][];
-					System.arraycopy(store, 0, newStore, 0, blocks);
-					store = newStore;
+	public CompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, Allocation allocation, boolean spanning) {
+		super(alignment, deflater, inflater, blockSize, allocation, spanning);
+	}
 
-				}
-				// we need to add a block
-				store[blocks] = new byte[blockSize];
-				// make sure we write the whole stream into one block
-				wasted += ((long) blocks) * blockSize - size;
-				// there is a need for the two steps here to avoid the product
-				// to
-				// go beyond the range of integers and then be casted to long.
-				size = blocks;
-				size *= blockSize;
-				blocks++;
-			}
+	protected byte[][] createStore(int length) {
+		return new byte[length][];
+	}
 
-			startIndex = size;
+	protected byte[] allocateBlock(int block) {
+		return new byte[blockSize];
+	}
 
-			size += s;
+	protected CompressedStoreImpl<T> createCopy() {
+		return new CompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, Allocation.SYNCHRONIZED, spanning);
+	}
 
-			// check the alignment
-			if (size % alignment != 0) {
-				long w = alignment - (size % alignment);
-				size += w;
-				wasted += w;
+	protected void copy(byte[] bytes, int off, int len, long index) throws StorageException {
+		final int blockIndex = (int) (index % blockSize);
+		if (blockIndex + len <= blockSize) {
+			System.arraycopy(bytes, off, store[(int) (index / blockSize)], blockIndex, len);
+		} else {
+			// the object spans multiple blocks
+			try {
+				new SpanningSkippableOutputStream(store, blockSize, index, index + len).write(bytes, off, len);
+			} catch (IOException e) {
+				throw new StorageException(e.getMessage());
 			}
-			// now copy the byte array into the store
-			blockIndex = (int) (startIndex % blockSize);
-			block = (int) (startIndex / blockSize);
 		}
+	}
 
-		byte[] deflated = out.getByteArray();
-		synchronized (store[block]) {
-			System.arraycopy(deflated, 0, store[block], blockIndex, s);
+	protected long deflateInPlace(T object, long startIndex, long endIndex) throws IOException {
+		final int blockIndex = (int) (startIndex % blockSize);
+		if (blockIndex + endIndex - startIndex <= blockSize) {
+			final BoundedSkippableOutputStream out = new BoundedSkippableOutputStream(
+					store[(int) (startIndex / blockSize)], blockIndex, (int) (blockIndex + endIndex - startIndex));
+			deflater.deflate(object, out);
+			return out.getSize();
+		} else {
+			final SpanningSkippableOutputStream out = new SpanningSkippableOutputStream(store, blockSize,
+					startIndex, endIndex);
+			deflater.deflate(object, out);
+			return out.getSize();
 		}
-		return startIndex;
-
 	}
 
 	/*
@@ -186,35 +137,11 @@ public class CompressedStoreImpl<T> implements CompressedStore<T> {
 	public FastByteArrayInputStream getStreamForObject(long index) {
 		int block = (int) (index / blockSize);
 		int blockIndex = (int) (index % blockSize);
-		return new FastByteArrayInputStream(store[block], blockIndex, blockSize - blockIndex);
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.processmining.framework.storage.CompressedStore#getObject(long)
-	 */
-	public T getObject(long index) throws StorageException {
-		if (inflater == null) {
-			throw new StorageException("No inflater specified.");
+		if (spanning) {
+			return new FastBlockArrayInputStream(store, blockSize, block, blockIndex, (int) Math.min(size - index,
+					Integer.MAX_VALUE - blockSize));
 		}
-		try {
-			FastByteArrayInputStream stream = getStreamForObject(index);
-			synchronized (stream.getLock()) {
-				return inflater.inflate(stream);
-			}
-		} catch (IOException e) {
-			throw new StorageException(e.getMessage());
-		}
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.processmining.framework.storage.CompressedStore#getSize()
-	 */
-	public long getSize() {
-		return size;
+		return new FastByteArrayInputStream(store[block], blockIndex, blockSize - blockIndex);
 	}
 
 	/*
@@ -226,58 +153,14 @@ public class CompressedStoreImpl<T> implements CompressedStore<T> {
 		return 8 + 4 + 4 + 8 + 8 + 4 + 8 + 8 + 8 + 8 + 8 + 24 + blocks * (24 + blockSize);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * org.processmining.framework.storage.CompressedStore#getWastedMemory()
-	 */
-	public long getWastedMemory() {
-		return wasted;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * org.processmining.framework.storage.CompressedStore#getUnusedMemory()
-	 */
-	public long getUnusedMemory() {
-		return (blockSize - size % blockSize);
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.processmining.framework.storage.CompressedStore#getInflater()
-	 */
-	public Inflater<? extends T> getInflater() {
-		return inflater;
-	}
-
-	public int getAlignment() {
-		return alignment;
-	}
-
 	@Override
 	public SkippableOutputStream getOutputStreamForObject(long index) {
 		final int block = (int) (index / blockSize);
 		final int blockIndex = (int) (index % blockSize);
-		return new SkippableOutputStream(store[block], blockIndex);
-	}
-
-	@Override
-	public void removeAll() {
-		this.blocks = 0;
-		this.size = 0;
-		this.wasted = 0;
-		synchronized (this) {
-			this.store = new byte[8][];
+		if (spanning) {
+			return new SpanningSkippableOutputStream(store, blockSize, index, Long.MAX_VALUE);
 		}
-	}
-
-	public int getBlocksInUse() {
-		return blocks;
+		return new SkippableOutputStream(store[block], blockIndex);
 	}
 
 }
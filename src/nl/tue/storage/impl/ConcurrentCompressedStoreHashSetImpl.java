@@ -0,0 +1,582 @@
+package nl.tue.storage.impl;
+
+import gnu.trove.map.TLongLongMap;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import nl.tue.storage.CompressedStore;
+import nl.tue.storage.ConcurrentCompressedHashSet;
+import nl.tue.storage.EqualOperation;
+import nl.tue.storage.HashOperation;
+import nl.tue.storage.ProbeOperation;
+import nl.tue.storage.StorageException;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Result;
+
+/**
+ * Thread-safe CompressedHashSet. The set is split into a number of segments,
+ * each of which is a backed hash set with its own read/write lock. All
+ * segments share one backing store. An object is kept in the segment given by
+ * the high bits of its (mixed) hash code, hence threads adding or looking up
+ * different objects rarely wait for each other. Each segment grows
+ * independently while holding its write lock.
+ *
+ * The backing store should allow objects to be added concurrently, which is
+ * the case for all stores in this package.
+ *
+ * As each segment is a separate table, the set can hold more than
+ * Integer.MAX_VALUE objects, up to about 2^30 objects per segment. To address
+ * a store of more than 4G times its alignment bytes, use the Long flavour.
+ *
+ * @param <K>
+ */
+public abstract class ConcurrentCompressedStoreHashSetImpl<K> implements ConcurrentCompressedHashSet<K> {
+
+	/**
+	 * The default number of segments.
+	 */
+	public static final int SEGMENTS = 64;
+
+	public static final class IntCustomAlignment<K> extends ConcurrentCompressedStoreHashSetImpl<K> {
+
+		public IntCustomAlignment(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs,
+				int initialCapacity) {
+			this(store, eq, hs, initialCapacity, SEGMENTS, ProbeFilter.NONE, Layout.DOUBLEHASHING);
+		}
+
+		/**
+		 * Instantiates the set on the given (empty) store. The alignment of the
+		 * pointers is taken from the store.
+		 *
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 *            the initial capacity of the whole set
+		 * @param segments
+		 *            the number of segments, a power of two
+		 * @param filter
+		 *            the probe filter of the segments
+		 * @param layout
+		 *            the table layout of the segments
+		 */
+		public IntCustomAlignment(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs,
+				int initialCapacity, int segments, ProbeFilter filter, Layout layout) {
+			super(store, eq, hs, initialCapacity, segments, filter, layout);
+		}
+
+		protected AbstractBackedHashSet<K> createSegment(CompressedStore<K> store, EqualOperation<K> eq,
+				HashOperation<K> hs, int initialCapacity, ProbeFilter filter, Layout layout) {
+			return new AlignedIntBackedHashSet<K>(store, eq, hs, initialCapacity, filter, layout);
+		}
+	}
+
+	public static final class Long<K> extends ConcurrentCompressedStoreHashSetImpl<K> {
+
+		public Long(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs, int initialCapacity) {
+			this(store, eq, hs, initialCapacity, SEGMENTS, ProbeFilter.NONE, Layout.DOUBLEHASHING);
+		}
+
+		/**
+		 * Instantiates the set on the given (empty) store.
+		 *
+		 * @param store
+		 * @param eq
+		 * @param hs
+		 * @param initialCapacity
+		 *            the initial capacity of the whole set
+		 * @param segments
+		 *            the number of segments, a power of two
+		 * @param filter
+		 *            the probe filter of the segments
+		 * @param layout
+		 *            the table layout of the segments
+		 */
+		public Long(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs, int initialCapacity,
+				int segments, ProbeFilter filter, Layout layout) {
+			super(store, eq, hs, initialCapacity, segments, filter, layout);
+		}
+
+		protected AbstractBackedHashSet<K> createSegment(CompressedStore<K> store, EqualOperation<K> eq,
+				HashOperation<K> hs, int initialCapacity, ProbeFilter filter, Layout layout) {
+			return new LongBackedHashSet<K>(store, eq, hs, initialCapacity, filter, layout);
+		}
+	}
+
+	private final CompressedStore<K> store;
+
+	private final HashOperation<K> hs;
+
+	private final AbstractBackedHashSet<K>[] segments;
+
+	private final ReentrantReadWriteLock[] locks;
+
+	/**
+	 * the segment of an object is given by the bits of the mixed hash code
+	 * that remain after this shift, masked with segmentMask.
+	 */
+	private final int segmentShift;
+
+	private final int segmentMask;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ConcurrentCompressedStoreHashSetImpl(CompressedStore<K> store, EqualOperation<K> eq, HashOperation<K> hs,
+			int initialCapacity, int segments, ProbeFilter filter, Layout layout) {
+		if (segments <= 0 || (segments & (segments - 1)) != 0) {
+			throw new IllegalArgumentException("The number of segments should be a positive power of two.");
+		}
+		this.store = store;
+		this.hs = hs;
+		this.segments = new AbstractBackedHashSet[segments];
+		this.locks = new ReentrantReadWriteLock[segments];
+		for (int s = 0; s < segments; s++) {
+			this.segments[s] = createSegment(store, eq, hs, Math.max(1, initialCapacity / segments),
+					filter, layout);
+			// lookups only hold the read lock
+			this.segments[s].setConcurrentLookups(true);
+			this.locks[s] = new ReentrantReadWriteLock();
+		}
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(segments);
+		this.segmentMask = segments - 1;
+	}
+
+	/**
+	 * Instantiates one segment of this set on the given store.
+	 *
+	 * @param store
+	 * @param eq
+	 * @param hs
+	 * @param initialCapacity
+	 * @param filter
+	 * @param layout
+	 * @return
+	 */
+	protected abstract AbstractBackedHashSet<K> createSegment(CompressedStore<K> store, EqualOperation<K> eq,
+			HashOperation<K> hs, int initialCapacity, ProbeFilter filter, Layout layout);
+
+	/**
+	 * Returns the segment for the given hash code. The hash code is mixed
+	 * first, as the segments themselves use the low bits of the hash code.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	private int segmentFor(int hash) {
+		return ((hash * 0x9E3779B9) >>> segmentShift) & segmentMask;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.processmining.framework.storage.CompressedHashSet#add(K)
+	 */
+	public Result<K> add(K val) throws StorageException {
+		Result<K> result = new Result<K>();
+		long index = addOrGet(val);
+		result.isNew = index >= 0;
+		result.index = result.isNew ? index : -(index + 1);
+
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.processmining.framework.storage.CompressedHashSet#addOrGet(K)
+	 */
+	public long addOrGet(K val) throws StorageException {
+		final int hash = hs.getHashCode(val);
+		final int s = segmentFor(hash);
+		locks[s].writeLock().lock();
+		try {
+			return segments[s].checkForAdd(val, hash & 0x7fffffff, true);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: " + e.getMessage());
+		} finally {
+			locks[s].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds all values in three phases. First, the values are looked up per
+	 * segment while holding the read lock of that segment. Then, the values
+	 * that were not found are stored in the backing store at once, without
+	 * holding any lock. Finally, they are inserted per segment while holding
+	 * the write lock of that segment. A value that was added by another
+	 * thread in the meantime is not inserted, its stored copy is wasted.
+	 */
+	@SuppressWarnings("unchecked")
+	public int add(K[] vals, long[] outIndices, boolean[] isNew) throws StorageException {
+		final int n = vals.length;
+		final int[] hashes = new int[n];
+		// order the values by segment, such that each lock is taken once per
+		// phase.
+		final int[] start = new int[segments.length + 1];
+		final int[] segs = new int[n];
+		for (int i = 0; i < n; i++) {
+			hashes[i] = hs.getHashCode(vals[i]);
+			segs[i] = segmentFor(hashes[i]);
+			start[segs[i] + 1]++;
+		}
+		for (int s = 0; s < segments.length; s++) {
+			start[s + 1] += start[s];
+		}
+		final int[] order = new int[n];
+		final int[] next = start.clone();
+		for (int i = 0; i < n; i++) {
+			order[next[segs[i]]++] = i;
+		}
+
+		try {
+			int missing = 0;
+			for (int s = 0; s < segments.length; s++) {
+				if (start[s] == start[s + 1]) {
+					continue;
+				}
+				locks[s].readLock().lock();
+				try {
+					for (int o = start[s]; o < start[s + 1]; o++) {
+						final int i = order[o];
+						final long index = segments[s].checkForAdd(vals[i], hashes[i] & 0x7fffffff, false);
+						isNew[i] = index >= 0;
+						if (isNew[i]) {
+							missing++;
+						} else {
+							outIndices[i] = -(index + 1);
+						}
+					}
+				} finally {
+					locks[s].readLock().unlock();
+				}
+			}
+			if (missing == 0) {
+				return 0;
+			}
+
+			final K[] toStore = (K[]) Array.newInstance(vals.getClass().getComponentType(), missing);
+			final long[] stored = new long[missing];
+			for (int i = 0, j = 0; i < n; i++) {
+				if (isNew[i]) {
+					toStore[j++] = vals[i];
+				}
+			}
+			store.addAll(toStore, stored);
+			for (int i = 0, j = 0; i < n; i++) {
+				if (isNew[i]) {
+					outIndices[i] = stored[j++];
+				}
+			}
+
+			int added = 0;
+			for (int s = 0; s < segments.length; s++) {
+				if (start[s] == start[s + 1]) {
+					continue;
+				}
+				locks[s].writeLock().lock();
+				try {
+					for (int o = start[s]; o < start[s + 1]; o++) {
+						final int i = order[o];
+						if (!isNew[i]) {
+							continue;
+						}
+						final long index = segments[s].insertStored(vals[i], hashes[i] & 0x7fffffff,
+								outIndices[i]);
+						if (index < 0) {
+							// added by another thread, or a duplicate within
+							// the batch
+							outIndices[i] = -(index + 1);
+							isNew[i] = false;
+						} else {
+							added++;
+						}
+					}
+				} finally {
+					locks[s].writeLock().unlock();
+				}
+			}
+			return added;
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Contains only holds the read lock of the segment of val, hence lookups
+	 * in the same segment can proceed concurrently, but they wait for an add
+	 * to that segment.
+	 */
+	public long contains(K val) throws StorageException {
+		final int hash = hs.getHashCode(val);
+		final int s = segmentFor(hash);
+		long index;
+		locks[s].readLock().lock();
+		try {
+			index = segments[s].checkForAdd(val, hash & 0x7fffffff, false);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: " + e.getMessage());
+		} finally {
+			locks[s].readLock().unlock();
+		}
+		if (index >= 0) {
+			return -1;
+		} else {
+			return -(index + 1);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.processmining.framework.storage.CompressedHashSet#contains(P,
+	 * ProbeOperation)
+	 */
+	public <P> long contains(P probe, ProbeOperation<P, K> op) throws StorageException {
+		final int hash = op.getProbeHashCode(probe);
+		final int s = segmentFor(hash);
+		locks[s].readLock().lock();
+		try {
+			return segments[s].checkForProbe(probe, op, hash & 0x7fffffff);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: " + e.getMessage());
+		} finally {
+			locks[s].readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.processmining.framework.storage.CompressedHashSet#getMemory()
+	 */
+	public long getMemory() {
+		long memory = 16 + 8 + 8 + 8 + 8 + 4 + 4 + 24 + 24 + store.getMemory();
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].readLock().lock();
+			try {
+				memory += segments[s].getMemory();
+			} finally {
+				locks[s].readLock().unlock();
+			}
+		}
+		return memory;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.processmining.framework.storage.CompressedHashSet#getObject(long)
+	 */
+	public K getObject(long l) throws StorageException {
+		return store.getObject(l);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.processmining.framework.storage.CompressedHashSet#getBackingStore()
+	 */
+	public CompressedStore<K> getBackingStore() {
+		return store;
+	}
+
+	/**
+	 * returns the sum of the sizes of the segments. If objects are added
+	 * concurrently, the result may be outdated.
+	 */
+	public long size() {
+		long size = 0;
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].readLock().lock();
+			try {
+				size += segments[s].size();
+			} finally {
+				locks[s].readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Enables or disables incremental resizing of the segments. If enabled,
+	 * growing a segment does not reinsert all its objects while holding the
+	 * write lock of the segment, but spreads this work over the subsequent
+	 * additions to that segment.
+	 *
+	 * @param incremental
+	 */
+	public void setIncrementalRehash(boolean incremental) {
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].writeLock().lock();
+			try {
+				segments[s].setIncrementalRehash(incremental);
+			} finally {
+				locks[s].writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Enables or disables parallel rehashing of the segments. If enabled, a
+	 * large segment is rehashed by the threads of a fork/join pool when it
+	 * grows, which shortens the time the write lock of the segment is held.
+	 *
+	 * @param parallel
+	 */
+	public void setParallelRehash(boolean parallel) {
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].writeLock().lock();
+			try {
+				segments[s].setParallelRehash(parallel);
+			} finally {
+				locks[s].writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of times a value was not compared to a stored object,
+	 * because the probe filter showed that they differ.
+	 *
+	 * @return
+	 */
+	public long getAvoidedEqualityChecks() {
+		long avoided = 0;
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].readLock().lock();
+			try {
+				avoided += segments[s].getAvoidedEqualityChecks();
+			} finally {
+				locks[s].readLock().unlock();
+			}
+		}
+		return avoided;
+	}
+
+	/**
+	 * Enables a Bloom filter in front of each segment with the given number
+	 * of bits per object, or disables it if bits is 0.
+	 *
+	 * @param bits
+	 */
+	public void setBloomFilter(int bits) {
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].writeLock().lock();
+			try {
+				segments[s].setBloomFilter(bits);
+			} finally {
+				locks[s].writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the fraction of the calls to contains for objects that are not
+	 * in the set that passed the Bloom filters, or NaN if there were none.
+	 *
+	 * @return
+	 */
+	public double getBloomFalsePositiveRate() {
+		long fp = 0, negatives = 0;
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].readLock().lock();
+			try {
+				fp += segments[s].getBloomFalsePositives();
+				negatives += segments[s].getBloomNegatives();
+			} finally {
+				locks[s].readLock().unlock();
+			}
+		}
+		return fp / (double) (fp + negatives);
+	}
+
+	/**
+	 * Estimates the false positive rate of the Bloom filters from their
+	 * current contents, averaged over the segments, or returns 1 if there are
+	 * no Bloom filters.
+	 *
+	 * @return
+	 */
+	public double getEstimatedBloomFalsePositiveRate() {
+		double rate = 0;
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].readLock().lock();
+			try {
+				rate += segments[s].getEstimatedBloomFalsePositiveRate();
+			} finally {
+				locks[s].readLock().unlock();
+			}
+		}
+		return rate / segments.length;
+	}
+
+	/**
+	 * Returns the number of segments of this set.
+	 *
+	 * @return
+	 */
+	public int getNumberOfSegments() {
+		return segments.length;
+	}
+
+	/**
+	 * Removes val from its segment, while holding the write lock of that
+	 * segment.
+	 */
+	public long remove(K val) throws StorageException {
+		final int hash = hs.getHashCode(val);
+		final int s = segmentFor(hash);
+		locks[s].writeLock().lock();
+		try {
+			return segments[s].remove(val, hash & 0x7fffffff);
+		} catch (IOException e) {
+			throw new StorageException("Error while reading from storage: " + e.getMessage());
+		} finally {
+			locks[s].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * compacts the shared backing store, which should be a
+	 * CompressedStoreImpl or DirectCompressedStoreImpl, and rebuilds all
+	 * segments. All segments are locked
+	 * while doing so. Other threads should not hold indices of objects in the
+	 * store, as these change.
+	 */
+	public TLongLongMap compact() throws StorageException {
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].writeLock().lock();
+		}
+		try {
+			return AbstractBackedHashSet.compact(store, segments);
+		} finally {
+			for (int s = segments.length; s-- > 0;) {
+				locks[s].writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * clears the storage space and removes all elements in the backing set.
+	 * All segments are locked while doing so.
+	 */
+	public void removeAll() {
+		for (int s = 0; s < segments.length; s++) {
+			locks[s].writeLock().lock();
+		}
+		try {
+			for (int s = 0; s < segments.length; s++) {
+				segments[s].clearTable();
+			}
+			store.removeAll();
+		} finally {
+			for (int s = segments.length; s-- > 0;) {
+				locks[s].writeLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import nl.tue.storage.Deflater;
+import nl.tue.storage.FastByteArrayInputStream;
+import nl.tue.storage.FastByteBufferInputStream;
+import nl.tue.storage.Inflater;
+import nl.tue.storage.StorageException;
+import nl.tue.storage.impl.CompressedStoreImpl.Allocation;
+
+/**
+ * CompressedStore that keeps its blocks outside of the Java heap, in direct
+ * ByteBuffers. Apart from the location of the blocks, this store behaves
+ * exactly like the CompressedStoreImpl, i.e. space is reserved in the same
+ * way and the indices returned by addToStorage are the same. Objects never
+ * cross block boundaries.
+ *
+ * Since the garbage collector never has to traverse the stored bytes, very
+ * large state spaces do not lead to long GC pauses. Note that the maximum
+ * amount of direct memory available to the JVM is limited by the
+ * -XX:MaxDirectMemorySize option. The memory of the blocks is released when
+ * the ByteBuffers are garbage collected after a call to removeAll().
+ *
+ * @param <T>
+ */
+public class DirectCompressedStoreImpl<T> extends AbstractCompressedStoreImpl<T, ByteBuffer> {
+
+	private static final int DEFAULTALIGNMENT = 1;
+
+	public DirectCompressedStoreImpl(Deflater<? super T> deflater) {
+		this(deflater, null);
+	}
+
+	public DirectCompressedStoreImpl(Deflater<? super T> deflater, Inflater<? extends T> inflater) {
+		this(deflater, inflater, BLOCKSIZE);
+	}
+
+	public DirectCompressedStoreImpl(Deflater<? super T> deflater, Inflater<? extends T> inflater, int blockSize) {
+		this(DEFAULTALIGNMENT, deflater, inflater, blockSize);
+	}
+
+	public DirectCompressedStoreImpl(int alignment, Deflater<? super T> deflater) {
+		this(alignment, deflater, null);
+	}
+
+	public DirectCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater) {
+		this(alignment, deflater, inflater, BLOCKSIZE);
+	}
+
+	public DirectCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize) {
+		this(alignment, deflater, inflater, blockSize, Allocation.SYNCHRONIZED);
+	}
+
+	public DirectCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, Allocation allocation) {
+		super(alignment, deflater, inflater, blockSize, allocation, false);
+	}
+
+	protected ByteBuffer[] createStore(int length) {
+		return new ByteBuffer[length];
+	}
+
+	/**
+	 * Allocates the buffer for the block with the given index. Blocks are
+	 * allocated in order, i.e. block i is only allocated after block i-1.
+	 *
+	 * @param block
+	 * @return a buffer with a capacity of at least getBlockSize() bytes and
+	 *         position 0.
+	 * @throws StorageException
+	 */
+	protected ByteBuffer allocateBlock(int block) throws StorageException {
+		return ByteBuffer.allocateDirect(blockSize);
+	}
+
+	protected DirectCompressedStoreImpl<T> createCopy() {
+		return new DirectCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, Allocation.SYNCHRONIZED);
+	}
+
+	protected void copy(byte[] bytes, int off, int len, long index) {
+		// the position of the block itself is never changed, as readers and
+		// writers may use the block in parallel.
+		final ByteBuffer buffer = store[(int) (index / blockSize)].duplicate();
+		buffer.position((int) (index % blockSize));
+		buffer.put(bytes, off, len);
+	}
+
+	protected long deflateInPlace(T object, long startIndex, long endIndex) throws IOException {
+		final int blockIndex = (int) (startIndex % blockSize);
+		final SkippableByteBufferOutputStream out = new SkippableByteBufferOutputStream(
+				store[(int) (startIndex / blockSize)], blockIndex, (int) (blockIndex + endIndex - startIndex));
+		deflater.deflate(object, out);
+		return out.getSize();
+	}
+
+	public FastByteArrayInputStream getStreamForObject(long index) {
+		int block = (int) (index / blockSize);
+		int blockIndex = (int) (index % blockSize);
+		return new FastByteBufferInputStream(store[block], blockIndex, blockSize - blockIndex);
+	}
+
+	/**
+	 * Returns the memory used by this storage. Note that the blocks themselves
+	 * are allocated outside of the Java heap.
+	 */
+	public long getMemory() {
+		return 8 + 4 + 4 + 8 + 8 + 4 + 8 + 8 + 8 + 8 + 8 + 24 + blocks * (64L + blockSize);
+	}
+
+	@Override
+	public SkippableOutputStream getOutputStreamForObject(long index) {
+		final int block = (int) (index / blockSize);
+		final int blockIndex = (int) (index % blockSize);
+		return new SkippableByteBufferOutputStream(store[block], blockIndex);
+	}
+
+}
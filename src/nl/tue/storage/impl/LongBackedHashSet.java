@@ -3,14 +3,29 @@ package nl.tue.storage.impl;
 import nl.tue.storage.CompressedStore;
 import nl.tue.storage.EqualOperation;
 import nl.tue.storage.HashOperation;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.Layout;
+import nl.tue.storage.impl.CompressedStoreHashSetImpl.ProbeFilter;
 
 class LongBackedHashSet<K> extends AbstractBackedHashSet<K> {
 
 	public long[] pointerArray;
+	// the table that is being migrated during an incremental resize
+	private long[] oldPointerArray;
 
 	public LongBackedHashSet(CompressedStore<K> store, EqualOperation<K> eq,
 			HashOperation<K> hs, int initialCapacity) {
-		super(store, eq, hs, initialCapacity);
+		this(store, eq, hs, initialCapacity, ProbeFilter.NONE);
+	}
+
+	public LongBackedHashSet(CompressedStore<K> store, EqualOperation<K> eq,
+			HashOperation<K> hs, int initialCapacity, ProbeFilter filter) {
+		this(store, eq, hs, initialCapacity, filter, Layout.DOUBLEHASHING);
+	}
+
+	public LongBackedHashSet(CompressedStore<K> store, EqualOperation<K> eq,
+			HashOperation<K> hs, int initialCapacity, ProbeFilter filter,
+			Layout layout) {
+		super(store, eq, hs, initialCapacity, filter, layout);
 	}
 
 	protected long get(int i) {
@@ -42,20 +57,25 @@ class LongBackedHashSet<K> extends AbstractBackedHashSet<K> {
 	}
 
 	protected void rehash(int newCapacity) {
+		newCapacity = tableCapacity(newCapacity);
+		if (rehashIncrementally(newCapacity) || rehashInParallel(newCapacity)) {
+			return;
+		}
 		int oldCapacity = pointerArray.length;
 
 		long oldSet[] = pointerArray;
 		// byte oldStates[] = _states;
 
 		pointerArray = new long[newCapacity];
+		int oldHashes[] = rehashFilter(newCapacity);
 		// _states = new byte[newCapacity];
 
 		for (int i = oldCapacity; i-- > 0;) {
 			// if (oldStates[i] == FULL) {
-			if (oldSet[i] != 0) {
+			if (oldSet[i] > 0) {
 				long o = oldSet[i];
 				try {
-					insertKey(null, o, true);
+					reinsert(o, oldHashes, i);
 				} catch (Exception e) {
 					throw new RuntimeException(e);
 				}
@@ -64,20 +84,45 @@ class LongBackedHashSet<K> extends AbstractBackedHashSet<K> {
 
 	}
 
+	protected void swapTables(int newCapacity) {
+		oldPointerArray = pointerArray;
+		pointerArray = new long[newCapacity];
+	}
+
+	protected long getOld(int i) {
+		return oldPointerArray[i];
+	}
+
+	protected int oldLength() {
+		return oldPointerArray == null ? 0 : oldPointerArray.length;
+	}
+
+	protected void dropOldTable() {
+		oldPointerArray = null;
+	}
+
 	protected void putEmpty(int i) {
 		pointerArray[i] = 0;
 	}
 
+	protected void putRemoved(int i) {
+		pointerArray[i] = REMOVED;
+	}
+
+	protected void putRemovedOld(int i) {
+		oldPointerArray[i] = REMOVED;
+	}
+
 	protected boolean isEmpty(int i) {
 		return pointerArray[i] == 0;
 	}
 
 	public long getMemory() {
-		return 8 * pointerArray.length;
+		return 8 * (pointerArray.length + oldLength()) + getFilterMemory();
 	}
 
 	protected boolean impliesEmpty(int i, long atIndex) {
-		return atIndex >= 0;
+		return atIndex == 0;
 	}
 
 }
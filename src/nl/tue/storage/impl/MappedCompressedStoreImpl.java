@@ -0,0 +1,173 @@
+package nl.tue.storage.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nl.tue.storage.Deflater;
+import nl.tue.storage.Inflater;
+import nl.tue.storage.StorageException;
+
+/**
+ * CompressedStore of which the blocks are memory-mapped segments of a
+ * temporary file. The store is append-only and uses the same indices as the
+ * CompressedStoreImpl. Since the blocks are backed by a file, the operating
+ * system can page out clean pages when memory runs low, hence the store can
+ * grow beyond the available RAM (at the cost of speed).
+ *
+ * To limit the number of mappings, the file is mapped in segments of (about)
+ * SEGMENTSIZE bytes, which are sliced into blocks. The temporary file is
+ * created in the given directory (or the default temporary-file directory)
+ * when the first block is allocated and it is removed by removeAll() or when
+ * the JVM exits.
+ *
+ * When the store is compacted, the remaining objects are copied into a new
+ * temporary file in the same directory, after which the old file is deleted.
+ * Hence, the directory temporarily needs room for both files.
+ *
+ * @param <T>
+ */
+public class MappedCompressedStoreImpl<T> extends DirectCompressedStoreImpl<T> {
+
+	/**
+	 * size of each mapped segment of the file. Defaults to 256 MBytes.
+	 */
+	public static final int SEGMENTSIZE = 256 * 1024 * 1024;
+
+	/**
+	 * directory for the temporary file, null for the default.
+	 */
+	private final File directory;
+
+	/**
+	 * the temporary file backing the store, null if no blocks are allocated.
+	 */
+	private File file;
+
+	private RandomAccessFile raf;
+
+	private FileChannel channel;
+
+	/**
+	 * the segment from which blocks are currently sliced
+	 */
+	private MappedByteBuffer segment;
+
+	/**
+	 * the index of the current segment
+	 */
+	private int segmentIndex;
+
+	public MappedCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize) {
+		this(alignment, deflater, inflater, blockSize, null);
+	}
+
+	public MappedCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, File directory) {
+		super(alignment, deflater, inflater, blockSize);
+		this.directory = directory;
+	}
+
+	@Override
+	protected synchronized ByteBuffer allocateBlock(int block) throws StorageException {
+		final int blockSize = getBlockSize();
+		final int blocksPerSegment = Math.max(1, SEGMENTSIZE / blockSize);
+		final int s = block / blocksPerSegment;
+		try {
+			if (channel == null) {
+				file = File.createTempFile("EfficientStorage", ".store", directory);
+				file.deleteOnExit();
+				raf = new RandomAccessFile(file, "rw");
+				channel = raf.getChannel();
+				segment = null;
+			}
+			if (segment == null || segmentIndex != s) {
+				// map the next segment, this grows the file as needed.
+				segment = channel.map(FileChannel.MapMode.READ_WRITE, ((long) s) * blocksPerSegment * blockSize,
+						((long) blocksPerSegment) * blockSize);
+				segmentIndex = s;
+			}
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+		ByteBuffer b = segment.duplicate();
+		b.position((block % blocksPerSegment) * blockSize);
+		b.limit(b.position() + blockSize);
+		return b.slice();
+	}
+
+	@Override
+	public void removeAll() {
+		super.removeAll();
+		synchronized (this) {
+			// removeAll is also called from the constructor of the
+			// superclass, i.e. before any file exists.
+			release();
+		}
+	}
+
+	/**
+	 * Closes and deletes the file backing this store, if any.
+	 */
+	private void release() {
+		if (channel != null) {
+			try {
+				channel.close();
+				raf.close();
+			} catch (IOException e) {
+				// Ignore, the file is deleted anyway.
+			}
+			// Note that on some platforms, the file can only be deleted
+			// once all mapped buffers are garbage collected. In that case,
+			// it is deleted on exit.
+			file.delete();
+			channel = null;
+			raf = null;
+			file = null;
+			segment = null;
+		}
+	}
+
+	/**
+	 * Creates a store with a new temporary file in the same directory.
+	 */
+	@Override
+	protected MappedCompressedStoreImpl<T> createCopy() {
+		return new MappedCompressedStoreImpl<T>(alignment, deflater, inflater, blockSize, directory);
+	}
+
+	/**
+	 * Takes over the file of the copy, after which the old file is closed and
+	 * deleted.
+	 */
+	@Override
+	protected void adopt(AbstractCompressedStoreImpl<T, ByteBuffer> copy) {
+		final MappedCompressedStoreImpl<T> c = (MappedCompressedStoreImpl<T>) copy;
+		super.adopt(copy);
+		synchronized (this) {
+			release();
+			synchronized (c) {
+				file = c.file;
+				raf = c.raf;
+				channel = c.channel;
+				segment = c.segment;
+				segmentIndex = c.segmentIndex;
+			}
+		}
+	}
+
+	/**
+	 * Returns the file backing this store, or null if no blocks were allocated
+	 * yet.
+	 *
+	 * @return
+	 */
+	public File getFile() {
+		return file;
+	}
+
+}
@@ -0,0 +1,399 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nl.tue.storage.CompressedStore;
+import nl.tue.storage.Deflater;
+import nl.tue.storage.FastByteArrayInputStream;
+import nl.tue.storage.FastByteArrayOutputStream;
+import nl.tue.storage.Inflater;
+import nl.tue.storage.ResizeableFastByteArrayOutputStream;
+import nl.tue.storage.StorageException;
+
+/**
+ * CompressedStore that routes objects to separate pools of blocks, based on the
+ * size of the deflated object. Each size class has a fixed slot size and all
+ * objects of at most that size (and larger than the previous class) are stored
+ * in a slot of that class, i.e. an object only wastes the difference between
+ * its size and the slot size, and slots exactly fill a block. Objects larger
+ * than the largest class are stored in an overflow pool, in which they are
+ * aligned on the alignment of this store.
+ *
+ * The indices returned by this store are multiples of the alignment, hence
+ * they can be used in an AlignedIntBackedHashSet. The size class is stored in
+ * the lowest bits of index / alignment, the number of the slot in the pool of
+ * that class in the remaining bits. Index / alignment never exceeds 32 bits.
+ *
+ * As a consequence, each pool can hold at most 2^(32 - b) slots, where b is
+ * the number of bits needed for the size class. With the 15 default classes
+ * and the overflow pool, b is 4, hence each pool is limited to 2^28 slots
+ * (and the overflow pool to 2^28 times the alignment bytes), well below the
+ * 2^32 aligned positions of a single CompressedStoreImpl in an
+ * AlignedIntBackedHashSet. If a pool is full, addToStorage throws a
+ * StorageException, even if other pools still have room.
+ *
+ * Each pool is a CompressedStoreImpl, of which the alignment is the slot size
+ * of the class, hence the pools use the given allocation mode. The wasted
+ * memory can be obtained per size class.
+ *
+ * When the store is compacted, the remaining objects are inflated and deflated
+ * into new pools, as the size of an object in the overflow pool is not known
+ * from its index alone. Each object is then stored in the same size class.
+ *
+ * @param <T>
+ */
+public class SizeClassCompressedStoreImpl<T> implements CompressedStore<T> {
+
+	/**
+	 * The default slot sizes of the size classes, in bytes.
+	 */
+	public static final int[] SIZECLASSES = new int[] { 4, 6, 8, 10, 12, 14, 16, 20, 24, 28, 32, 40, 48, 56, 64 };
+
+	/**
+	 * the largest value of index / alignment. An AlignedIntBackedHashSet
+	 * stores index / alignment + 1 and reserves 0xffffffff for removed
+	 * objects.
+	 */
+	private static final long MAXCODE = 0xfffffffdL;
+
+	/**
+	 * initial size of the scratch buffers
+	 */
+	private static final int SCRATCHSIZE = 256;
+
+	/**
+	 * the scratch buffer of each thread, used to deflate an object before
+	 * choosing its size class.
+	 */
+	private static final ThreadLocal<ResizeableFastByteArrayOutputStream> SCRATCH = new ThreadLocal<ResizeableFastByteArrayOutputStream>();
+
+	/**
+	 * Deflater that writes an already deflated object into a pool
+	 */
+	private static class PassThrough implements Deflater<FastByteArrayOutputStream> {
+
+		private final int maxByteCount;
+
+		public PassThrough(int maxByteCount) {
+			this.maxByteCount = maxByteCount;
+		}
+
+		public void deflate(FastByteArrayOutputStream object, OutputStream stream) throws IOException {
+			stream.write(object.getByteArray(), 0, object.getSize());
+		}
+
+		public int getMaxByteCount() {
+			return maxByteCount;
+		}
+
+	}
+
+	/**
+	 * the slot sizes, in ascending order
+	 */
+	private final int[] sizeClasses;
+
+	/**
+	 * the pools, one per size class and the overflow pool last
+	 */
+	private final CompressedStoreImpl<FastByteArrayOutputStream>[] pools;
+
+	/**
+	 * number of bits used for the size class in an index
+	 */
+	private final int classBits;
+
+	private final Deflater<? super T> deflater;
+
+	private final Inflater<? extends T> inflater;
+
+	private final int alignment;
+
+	private final int blockSize;
+
+	private final CompressedStoreImpl.Allocation allocation;
+
+	public SizeClassCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize) {
+		this(alignment, deflater, inflater, blockSize, SIZECLASSES, CompressedStoreImpl.Allocation.SYNCHRONIZED);
+	}
+
+	/**
+	 *
+	 * @param alignment
+	 * @param deflater
+	 * @param inflater
+	 * @param blockSize
+	 *            the blocksize of each pool
+	 * @param sizeClasses
+	 *            the slot sizes in strictly ascending order
+	 * @param allocation
+	 *            the allocation mode of the pools
+	 */
+	public SizeClassCompressedStoreImpl(int alignment, Deflater<? super T> deflater, Inflater<? extends T> inflater,
+			int blockSize, int[] sizeClasses, CompressedStoreImpl.Allocation allocation) {
+		for (int c = 0; c < sizeClasses.length; c++) {
+			if (sizeClasses[c] <= 0 || (c > 0 && sizeClasses[c] <= sizeClasses[c - 1])) {
+				throw new IllegalArgumentException("Size classes should be positive and strictly ascending.");
+			}
+		}
+		this.alignment = alignment;
+		this.deflater = deflater;
+		this.inflater = inflater;
+		this.sizeClasses = sizeClasses.clone();
+		int bits = 0;
+		while ((1 << bits) < sizeClasses.length + 1) {
+			bits++;
+		}
+		this.classBits = bits;
+		this.blockSize = blockSize;
+		this.allocation = allocation;
+		this.pools = createPools();
+	}
+
+	/**
+	 * Creates an empty pool for each size class and the overflow pool
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CompressedStoreImpl<FastByteArrayOutputStream>[] createPools() {
+		final CompressedStoreImpl<FastByteArrayOutputStream>[] pools = new CompressedStoreImpl[sizeClasses.length + 1];
+		for (int c = 0; c < sizeClasses.length; c++) {
+			pools[c] = new CompressedStoreImpl<FastByteArrayOutputStream>(sizeClasses[c], new PassThrough(
+					sizeClasses[c]), null, blockSize, allocation);
+		}
+		pools[sizeClasses.length] = new CompressedStoreImpl<FastByteArrayOutputStream>(alignment, new PassThrough(
+				-1), null, blockSize, allocation);
+		return pools;
+	}
+
+	public long addToStorage(T object) throws StorageException {
+		return addToStorage(pools, object);
+	}
+
+	/**
+	 * Deflates the object and stores it in the pool of its size class
+	 * 
+	 * @param pools
+	 * @param object
+	 * @return
+	 * @throws StorageException
+	 */
+	private long addToStorage(CompressedStoreImpl<FastByteArrayOutputStream>[] pools, T object)
+			throws StorageException {
+		ResizeableFastByteArrayOutputStream out = SCRATCH.get();
+		if (out == null) {
+			out = new ResizeableFastByteArrayOutputStream(SCRATCHSIZE);
+			SCRATCH.set(out);
+		}
+		out.reset();
+		try {
+			deflater.deflate(object, out);
+		} catch (IOException e) {
+			throw new StorageException(e.getMessage());
+		}
+		final int c = getSizeClass(out.getSize());
+		final CompressedStoreImpl<FastByteArrayOutputStream> pool = pools[c];
+		// the deflated bytes are copied into the slot once
+		final long slot = pool.addDeflated(out.getByteArray(), 0, out.getSize()) / pool.getAlignment();
+		final long code = (slot << classBits) | c;
+		if (code > MAXCODE) {
+			throw new StorageException("Storage Full");
+		}
+		return code * alignment;
+	}
+
+	/**
+	 * Adds all objects one by one, as they are generally stored in different
+	 * pools.
+	 */
+	public void addAll(T[] objects, long[] outIndices) throws StorageException {
+		for (int i = 0; i < objects.length; i++) {
+			outIndices[i] = addToStorage(objects[i]);
+		}
+	}
+
+	/**
+	 * Returns the size class for objects of s bytes
+	 *
+	 * @param s
+	 * @return
+	 */
+	private int getSizeClass(int s) {
+		// binary search for the first class with a slot of at least s bytes
+		int low = 0;
+		int high = sizeClasses.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sizeClasses[mid] < s) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public FastByteArrayInputStream getStreamForObject(long index) {
+		final long code = index / alignment;
+		final CompressedStoreImpl<FastByteArrayOutputStream> pool = pools[(int) (code & ((1 << classBits) - 1))];
+		return pool.getStreamForObject((code >>> classBits) * pool.getAlignment());
+	}
+
+	public SkippableOutputStream getOutputStreamForObject(long index) {
+		final long code = index / alignment;
+		final CompressedStoreImpl<FastByteArrayOutputStream> pool = pools[(int) (code & ((1 << classBits) - 1))];
+		return pool.getOutputStreamForObject((code >>> classBits) * pool.getAlignment());
+	}
+
+	public T getObject(long index) throws StorageException {
+		if (inflater == null) {
+			throw new StorageException("No inflater specified.");
+		}
+		try {
+			FastByteArrayInputStream stream = getStreamForObject(index);
+			synchronized (stream.getLock()) {
+				return inflater.inflate(stream);
+			}
+		} catch (IOException e) {
+			throw new StorageException(e.getMessage());
+		}
+	}
+
+	public long getSize() {
+		long size = 0;
+		for (CompressedStore<?> pool : pools) {
+			size += pool.getSize();
+		}
+		return size;
+	}
+
+	public long getMemory() {
+		long memory = 8 + 8 + 8 + 8 + 8 + 4 + 4 + 24 + 8 * pools.length + 4 * sizeClasses.length;
+		for (CompressedStore<?> pool : pools) {
+			memory += pool.getMemory();
+		}
+		return memory;
+	}
+
+	public long getWastedMemory() {
+		long wasted = 0;
+		for (CompressedStore<?> pool : pools) {
+			wasted += pool.getWastedMemory();
+		}
+		return wasted;
+	}
+
+	public long getUnusedMemory() {
+		long unused = 0;
+		for (CompressedStore<?> pool : pools) {
+			unused += pool.getUnusedMemory();
+		}
+		return unused;
+	}
+
+	/**
+	 * Returns the number of size classes, including the overflow class, which
+	 * has the highest number.
+	 *
+	 * @return
+	 */
+	public int getNumberOfSizeClasses() {
+		return pools.length;
+	}
+
+	/**
+	 * Returns the slot size of the given size class, or -1 for the overflow
+	 * class.
+	 *
+	 * @param sizeClass
+	 * @return
+	 */
+	public int getSlotSize(int sizeClass) {
+		return sizeClass < sizeClasses.length ? sizeClasses[sizeClass] : -1;
+	}
+
+	/**
+	 * Returns the number of bytes stored in the given size class
+	 *
+	 * @param sizeClass
+	 * @return
+	 */
+	public long getSize(int sizeClass) {
+		return pools[sizeClass].getSize();
+	}
+
+	/**
+	 * Returns the memory wasted in the given size class, i.e. the difference
+	 * between the size of the stored objects and the size of their slots.
+	 *
+	 * @param sizeClass
+	 * @return
+	 */
+	public long getWastedMemory(int sizeClass) {
+		return pools[sizeClass].getWastedMemory();
+	}
+
+	public Inflater<? extends T> getInflater() {
+		return inflater;
+	}
+
+	public int getAlignment() {
+		return alignment;
+	}
+
+	public void removeAll() {
+		for (CompressedStore<?> pool : pools) {
+			pool.removeAll();
+		}
+	}
+
+	public int getBlocksInUse() {
+		int blocks = 0;
+		for (CompressedStore<?> pool : pools) {
+			blocks += pool.getBlocksInUse();
+		}
+		return blocks;
+	}
+
+	/**
+	 * Rewrites the objects at the given indices, which should be in ascending
+	 * order, into new pools and releases all other objects. Afterwards,
+	 * outIndices[i] holds the new index of the object that was at indices[i].
+	 * Objects are copied by inflating and deflating them, hence the store
+	 * requires an inflater.
+	 * 
+	 * As the size class is stored in the lowest bits of an index, the objects
+	 * of each pool are visited in the order in which they are stored, hence a
+	 * block of a pool is released as soon as all objects in it have been
+	 * copied. If compaction fails, the contents of the store are undefined.
+	 * The store should not be used by other threads while it is being
+	 * compacted.
+	 * 
+	 * @param indices
+	 * @param outIndices
+	 * @throws StorageException
+	 */
+	public void compact(long[] indices, long[] outIndices) throws StorageException {
+		final CompressedStoreImpl<FastByteArrayOutputStream>[] copies = createPools();
+		final int[] released = new int[pools.length];
+		for (int i = 0; i < indices.length; i++) {
+			assert i == 0 || indices[i - 1] < indices[i];
+			final long code = indices[i] / alignment;
+			final int c = (int) (code & ((1 << classBits) - 1));
+			final CompressedStoreImpl<FastByteArrayOutputStream> pool = pools[c];
+			final int block = (int) ((code >>> classBits) * pool.getAlignment() / pool.getBlockSize());
+			final T object = getObject(indices[i]);
+			while (released[c] < block) {
+				pool.store[released[c]++] = null;
+			}
+			outIndices[i] = addToStorage(copies, object);
+		}
+		for (int c = 0; c < pools.length; c++) {
+			pools[c].adopt(copies[c]);
+		}
+	}
+
+}
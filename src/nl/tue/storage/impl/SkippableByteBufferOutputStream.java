@@ -0,0 +1,83 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SkippableOutputStream that writes into a ByteBuffer, but never beyond the
+ * given limit. The stream writes through a duplicate of the buffer, i.e.
+ * without changing the position of the buffer itself.
+ */
+public class SkippableByteBufferOutputStream extends SkippableOutputStream {
+
+	private final ByteBuffer buffer;
+	private final ByteBuffer view;
+	private final int start;
+	private final int limit;
+
+	public SkippableByteBufferOutputStream(ByteBuffer buffer, int pos) {
+		this(buffer, pos, buffer.capacity());
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 * @param pos
+	 *            the first index to write to
+	 * @param limit
+	 *            the last index that can be written to (exclusive)
+	 */
+	public SkippableByteBufferOutputStream(ByteBuffer buffer, int pos, int limit) {
+		super(pos);
+		this.buffer = buffer;
+		this.view = buffer.duplicate();
+		this.start = pos;
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (pos >= limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		view.put(pos++, (byte) b);
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		if (pos + len > limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		view.position(pos);
+		view.put(b, off, len);
+		pos += len;
+	}
+
+	@Override
+	public void write(byte b[]) throws IOException {
+		if (pos + b.length > limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		view.position(pos);
+		view.put(b);
+		pos += b.length;
+	}
+
+	/**
+	 * Returns the number of bytes written (or skipped) so far.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return pos - start;
+	}
+
+	/**
+	 * When writing to this stream, you need a lock on this object.
+	 *
+	 * @return
+	 */
+	public Object getLock() {
+		return buffer;
+	}
+}
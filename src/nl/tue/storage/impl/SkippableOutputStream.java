@@ -5,7 +5,7 @@ import java.io.OutputStream;
 
 public class SkippableOutputStream extends OutputStream {
 
-	private int pos;
+	protected int pos;
 	private final byte[] array;
 
 	public SkippableOutputStream(byte[] array, int pos) {
@@ -14,6 +14,16 @@ public class SkippableOutputStream extends OutputStream {
 
 	}
 
+	/**
+	 * Constructor for subclasses that do not write into a byte array.
+	 * Subclasses should override all write methods as well as getLock().
+	 * 
+	 * @param pos
+	 */
+	protected SkippableOutputStream(int pos) {
+		this(null, pos);
+	}
+
 	@Override
 	public void write(int b) throws IOException {
 		array[pos++] = (byte) b;
@@ -26,7 +36,7 @@ public class SkippableOutputStream extends OutputStream {
 	}
 
 	@Override
-	public void write(byte b[]) {
+	public void write(byte b[]) throws IOException {
 		System.arraycopy(b, 0, array, pos, b.length);
 		pos += b.length;
 	}
@@ -0,0 +1,114 @@
+package nl.tue.storage.impl;
+
+import java.io.IOException;
+
+/**
+ * SkippableOutputStream that writes into a sequence of equally sized blocks,
+ * i.e. the stream continues at the start of the next block when the end of a
+ * block is reached. Writing beyond the given limit fails.
+ */
+public class SpanningSkippableOutputStream extends SkippableOutputStream {
+
+	private final byte[][] blocks;
+	private final int blockSize;
+	private final long start;
+	private final long limit;
+	private final Object lock;
+	private int block;
+	private byte[] current;
+
+	/**
+	 * 
+	 * @param blocks
+	 *            the blocks, which should all be allocated up to the limit
+	 * @param blockSize
+	 * @param index
+	 *            the index of the first byte to write to
+	 * @param limit
+	 *            the index of the last byte that can be written to
+	 *            (exclusive)
+	 */
+	public SpanningSkippableOutputStream(byte[][] blocks, int blockSize, long index, long limit) {
+		super((int) (index % blockSize));
+		this.blocks = blocks;
+		this.blockSize = blockSize;
+		this.start = index;
+		this.limit = limit;
+		this.block = (int) (index / blockSize);
+		this.current = blocks[block];
+		this.lock = current;
+	}
+
+	/**
+	 * moves to the block containing pos.
+	 */
+	private void nextBlock() {
+		while (pos >= blockSize) {
+			pos -= blockSize;
+			block++;
+		}
+		current = blocks[block];
+	}
+
+	private long position() {
+		return ((long) block) * blockSize + pos;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (position() >= limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		if (pos >= blockSize) {
+			nextBlock();
+		}
+		current[pos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		if (position() + len > limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		copy(b, off, len);
+	}
+
+	@Override
+	public void write(byte b[]) throws IOException {
+		if (position() + b.length > limit) {
+			throw new IOException("Reserved space exceeded.");
+		}
+		copy(b, 0, b.length);
+	}
+
+	private void copy(byte[] b, int off, int len) {
+		while (len > 0) {
+			if (pos >= blockSize) {
+				nextBlock();
+			}
+			int l = Math.min(len, blockSize - pos);
+			System.arraycopy(b, off, current, pos, l);
+			pos += l;
+			off += l;
+			len -= l;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written (or skipped) so far.
+	 * 
+	 * @return
+	 */
+	public long getSize() {
+		return position() - start;
+	}
+
+	/**
+	 * When writing to this stream, you need a lock on this object, which is
+	 * the block in which the stream started.
+	 */
+	@Override
+	public Object getLock() {
+		return lock;
+	}
+}